@@ -0,0 +1,111 @@
+package mcjty.lostcities.benchmark;
+
+import mcjty.lostcities.api.LostChunkCharacteristics;
+import mcjty.lostcities.api.RailChunkType;
+import mcjty.lostcities.gui.NullDimensionInfo;
+import mcjty.lostcities.worldgen.lost.AreaCharacteristics;
+import mcjty.lostcities.worldgen.lost.BuildingInfo;
+import mcjty.lostcities.worldgen.lost.DamageArea;
+import mcjty.lostcities.worldgen.lost.Highway;
+import mcjty.lostcities.worldgen.lost.Railway;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per chunk information that is calculated before a chunk can be generated. Every call asks for
+ * a chunk that wasn't asked before (walking a grid row by row like worldgen does) so this measures
+ * the calculation and not the cache. The caches are cleared before every iteration
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkInfoBenchmark {
+
+    private static final int ROW = 256;
+
+    private NullDimensionInfo provider;
+    private int counter;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        provider = Headless.createProvider(123456789L);
+    }
+
+    @Setup(Level.Iteration)
+    public void clean() {
+        provider.getCaches().clear();
+        counter = 0;
+    }
+
+    private int nextX() {
+        return counter % ROW;
+    }
+
+    private int nextZ() {
+        return counter++ / ROW;
+    }
+
+    @Benchmark
+    public BuildingInfo buildingInfo() {
+        return BuildingInfo.getBuildingInfo(nextX(), nextZ(), provider);
+    }
+
+    @Benchmark
+    public LostChunkCharacteristics chunkCharacteristics() {
+        return BuildingInfo.getChunkCharacteristics(nextX(), nextZ(), provider);
+    }
+
+    /**
+     * A 16x16 area of chunks at once. Compare with 256 times chunkCharacteristics
+     */
+    @Benchmark
+    public LostChunkCharacteristics[] chunkCharacteristicsArea() {
+        int area = counter++;
+        return AreaCharacteristics.getChunkCharacteristics((area % 16) * 16, (area / 16) * 16, 16, 16, provider);
+    }
+
+    @Benchmark
+    public RailChunkType railway() {
+        return Railway.getRailChunkType(nextX(), nextZ(), provider, provider.getProfile()).getType();
+    }
+
+    @Benchmark
+    public int highway() {
+        return Highway.getXHighwayLevel(nextX(), nextZ(), provider, provider.getProfile());
+    }
+
+    /**
+     * The building infos are made up front so that only the damage area itself is measured
+     */
+    @State(Scope.Thread)
+    public static class DamageState {
+        private static final int SIZE = 64;
+
+        private final BuildingInfo[] infos = new BuildingInfo[SIZE * SIZE];
+        private int index;
+
+        @Setup(Level.Iteration)
+        public void setup(ChunkInfoBenchmark benchmark) {
+            for (int i = 0 ; i < infos.length ; i++) {
+                infos[i] = BuildingInfo.getBuildingInfo(i % SIZE, i / SIZE, benchmark.provider);
+            }
+            index = 0;
+        }
+
+        private BuildingInfo next() {
+            BuildingInfo info = infos[index];
+            index = (index + 1) % infos.length;
+            return info;
+        }
+    }
+
+    @Benchmark
+    public DamageArea damageArea(DamageState state) {
+        BuildingInfo info = state.next();
+        return new DamageArea(info.chunkX, info.chunkZ, provider, info);
+    }
+}
@@ -0,0 +1,66 @@
+package mcjty.lostcities.benchmark;
+
+import com.electronwill.nightconfig.core.CommentedConfig;
+import mcjty.lostcities.LostCities;
+import mcjty.lostcities.config.LostCityProfile;
+import mcjty.lostcities.gui.NullDimensionInfo;
+import mcjty.lostcities.setup.Config;
+import mcjty.lostcities.setup.ModSetup;
+import mcjty.lostcities.worldgen.lost.City;
+import mcjty.lostcities.worldgen.lost.cityassets.AssetRegistries;
+import mcjty.lostcities.worldgen.lost.cityassets.CompiledPalette;
+import net.minecraft.tags.TagRegistryManager;
+import net.minecraft.util.registry.Bootstrap;
+import org.apache.logging.log4j.LogManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Sets up just enough of Minecraft and Lost Cities to run the worldgen code without a world. The
+ * heightmaps and biomes come from the same NullDimensionInfo that the preview in the GUI uses
+ */
+public class Headless {
+
+    private static boolean initialized = false;
+
+    public static synchronized void init() {
+        if (initialized) {
+            return;
+        }
+        Bootstrap.bootStrap();
+        // There is no server to send us the tags so make them all empty
+        TagRegistryManager.resetAllToEmpty();
+        ModSetup.logger = LogManager.getLogger();
+        // No config file. This fills in all the defaults
+        Config.COMMON_CONFIG.setConfig(CommentedConfig.inMemory());
+
+        AssetRegistries.reset();
+        for (String path : Config.DEFAULT_ASSETS) {
+            // Only the builtin assets. User assets live in the config folder
+            if (path.startsWith("/")) {
+                try (InputStream inputstream = LostCities.class.getResourceAsStream(path)) {
+                    AssetRegistries.load(inputstream, path);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        }
+        AssetRegistries.compile();
+        initialized = true;
+    }
+
+    public static NullDimensionInfo createProvider(long seed) {
+        init();
+        cleanCaches();
+        LostCityProfile profile = new LostCityProfile("default", true);
+        return new NullDimensionInfo(profile, seed);
+    }
+
+    // The generation caches belong to the provider. These are the caches of the assets
+    public static void cleanCaches() {
+        City.cleanCache();
+        CompiledPalette.cleanCache();
+    }
+}
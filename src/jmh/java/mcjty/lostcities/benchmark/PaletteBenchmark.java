@@ -0,0 +1,266 @@
+package mcjty.lostcities.benchmark;
+
+import mcjty.lostcities.gui.NullDimensionInfo;
+import mcjty.lostcities.worldgen.GenerationContext;
+import mcjty.lostcities.worldgen.LostCityTerrainFeature;
+import mcjty.lostcities.worldgen.lost.BuildingInfo;
+import mcjty.lostcities.worldgen.lost.Transform;
+import mcjty.lostcities.worldgen.lost.cityassets.AssetRegistries;
+import mcjty.lostcities.worldgen.lost.cityassets.BuildingPart;
+import mcjty.lostcities.worldgen.lost.cityassets.CompiledPalette;
+import mcjty.lostcities.worldgen.lost.cityassets.CompiledPart;
+import mcjty.lostcities.worldgen.lost.cityassets.Palette;
+import net.minecraft.block.*;
+import net.minecraft.state.EnumProperty;
+import net.minecraft.state.properties.RailShape;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.palette.UpgradeData;
+import net.minecraft.world.chunk.ChunkPrimer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Palette lookups and compiled parts. The parts are written in a plain array that stands in for the
+ * chunk. 'partUncompiled' resolves every block exactly like generatePart did before parts were
+ * compiled (a combined palette per part, a palette and info lookup, rotation and the state set checks
+ * per block). 'placeCompiledPart' does the same with the CompiledPart of the palette. 'compilePart'
+ * measures compiling a part against a palette (what a miss in the compiled part cache costs).
+ * 'generatePart' runs the real generatePart in a ChunkPrimer without a world. Parts with loot or
+ * spawners are left out for all benchmarks because placing those needs a world
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PaletteBenchmark {
+
+    @Param({"ROTATE_NONE", "ROTATE_90"})
+    public Transform transform;
+
+    private NullDimensionInfo provider;
+    private BuildingInfo city;
+    private CompiledPalette palette;
+    private BlockState liquid;
+    private GenerationContext context;
+    private char[] characters;
+    private BuildingPart[] parts;
+    private int partIndex;
+    private final BlockState[] chunk = new BlockState[16 * 16 * 256];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        provider = Headless.createProvider(123456789L);
+        city = null;
+        for (int i = 0 ; i < 64 * 64 && city == null ; i++) {
+            BuildingInfo info = BuildingInfo.getBuildingInfo(i % 64, i / 64, provider);
+            if (info.isCity) {
+                city = info;
+            }
+        }
+        if (city == null) {
+            throw new IllegalStateException("No city found!");
+        }
+        palette = city.getCompiledPalette();
+        liquid = provider.getFeature().liquid;
+
+        characters = new char[palette.getCharacters().size()];
+        int i = 0;
+        for (Character c : palette.getCharacters()) {
+            characters[i++] = c;
+        }
+
+        List<BuildingPart> list = new ArrayList<>();
+        for (BuildingPart part : AssetRegistries.PARTS.getIterable()) {
+            // Only parts that fit in a chunk and that this palette (and their own) can resolve
+            if (part.getXSize() <= 16 && part.getZSize() <= 16 && canResolve(part)) {
+                list.add(part);
+            }
+        }
+        parts = list.toArray(new BuildingPart[0]);
+    }
+
+    // A new chunk every iteration so the light sources the chunk keeps track of don't pile up
+    @Setup(Level.Iteration)
+    public void newChunk() {
+        // There is no region. generatePart only needs the chunk
+        context = new GenerationContext(null, new ChunkPrimer(new ChunkPos(city.chunkX, city.chunkZ), UpgradeData.EMPTY), provider.getSeed());
+    }
+
+    private boolean canResolve(BuildingPart part) {
+        CompiledPalette p = part.getLocalPalette() == null ? palette : palette.withLocalPalette(part.getLocalPalette());
+        for (int x = 0 ; x < part.getXSize() ; x++) {
+            for (int z = 0 ; z < part.getZSize() ; z++) {
+                char[] vs = part.getVSlice(x, z);
+                if (vs != null) {
+                    for (char c : vs) {
+                        if (p.getStraight(c) == null) {
+                            return false;
+                        }
+                        CompiledPalette.Info inf = p.getInfo(c);
+                        if (inf != null && (isSet(inf.getLoot()) || isSet(inf.getMobId()))) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSet(String s) {
+        return s != null && !s.isEmpty();
+    }
+
+    private BuildingPart nextPart() {
+        BuildingPart part = parts[partIndex];
+        partIndex = (partIndex + 1) % parts.length;
+        return part;
+    }
+
+    @Benchmark
+    public void lookup(Blackhole blackhole) {
+        for (char c : characters) {
+            blackhole.consume(palette.get(c));
+            blackhole.consume(palette.getInfo(c));
+        }
+    }
+
+    @Benchmark
+    public CompiledPalette combineLocalPalette() {
+        Palette local = nextPart().getLocalPalette();
+        return local == null ? palette : new CompiledPalette(palette, local);
+    }
+
+    @Benchmark
+    public CompiledPalette combineLocalPaletteShared() {
+        Palette local = nextPart().getLocalPalette();
+        return local == null ? palette : palette.withLocalPalette(local);
+    }
+
+    @Benchmark
+    public BlockState[] partUncompiled(Blackhole blackhole) {
+        BuildingPart part = nextPart();
+        CompiledPalette p = palette;
+        if (part.getLocalPalette() != null) {
+            p = new CompiledPalette(p, part.getLocalPalette());
+        }
+        for (int x = 0 ; x < part.getXSize() ; x++) {
+            for (int z = 0 ; z < part.getZSize() ; z++) {
+                char[] vs = part.getVSlice(x, z);
+                if (vs != null) {
+                    int rx = transform.rotateX(x, z);
+                    int rz = transform.rotateZ(x, z);
+                    int index = (rx * 16 + rz) * 256;
+                    for (int y = 0 ; y < vs.length ; y++) {
+                        char c = vs[y];
+                        BlockState b = p.get(c);
+                        if (b == null) {
+                            throw new RuntimeException("Could not find entry '" + c + "' in the palette for part '" + part.getName() + "'!");
+                        }
+                        CompiledPalette.Info inf = p.getInfo(c);
+                        if (transform != Transform.ROTATE_NONE) {
+                            if (LostCityTerrainFeature.getRotatableStates().contains(b)) {
+                                b = b.rotate(transform.getMcRotation());
+                            } else if (LostCityTerrainFeature.getRailStates().contains(b)) {
+                                EnumProperty<RailShape> shapeProperty;
+                                if (b.getBlock() == Blocks.RAIL) {
+                                    shapeProperty = RailBlock.SHAPE;
+                                } else if (b.getBlock() == Blocks.POWERED_RAIL) {
+                                    shapeProperty = PoweredRailBlock.SHAPE;
+                                } else {
+                                    throw new RuntimeException("Error with rail!");
+                                }
+                                RailShape shape = b.getValue(shapeProperty);
+                                b = b.setValue(shapeProperty, transform.transform(shape));
+                            }
+                        }
+                        if (b != LostCityTerrainFeature.air) {
+                            // The same checks as generatePart. Their outcome depends on the profile so it is only consumed
+                            if (b == liquid || b == LostCityTerrainFeature.hardAir) {
+                                blackhole.consume(b);
+                            } else if (inf != null) {
+                                blackhole.consume(inf.isTorch());
+                                blackhole.consume(inf.getLoot());
+                                blackhole.consume(inf.getMobId());
+                            } else if (LostCityTerrainFeature.getStatesNeedingLightingUpdate().contains(b)) {
+                                blackhole.consume(b);
+                            } else if (LostCityTerrainFeature.getStatesNeedingTodo().contains(b)) {
+                                Block block = b.getBlock();
+                                blackhole.consume(block instanceof SaplingBlock || block instanceof FlowerBlock);
+                            }
+                            chunk[index + y] = b;
+                        }
+                    }
+                }
+            }
+        }
+        return chunk;
+    }
+
+    @Benchmark
+    public CompiledPart compilePart() {
+        BuildingPart part = nextPart();
+        CompiledPalette p = palette;
+        if (part.getLocalPalette() != null) {
+            p = p.withLocalPalette(part.getLocalPalette());
+        }
+        return new CompiledPart(part, p, transform);
+    }
+
+    @Benchmark
+    public BlockState[] placeCompiledPart(Blackhole blackhole) {
+        BuildingPart part = nextPart();
+        CompiledPalette p = palette;
+        if (part.getLocalPalette() != null) {
+            p = p.withLocalPalette(part.getLocalPalette());
+        }
+        CompiledPart compiledPart = p.getCompiledPart(part, transform);
+        for (CompiledPart.Column column : compiledPart.getColumns()) {
+            int index = (column.getX() * 16 + column.getZ()) * 256;
+            int len = column.getHeight();
+            for (int y = 0 ; y < len ; y++) {
+                BlockState b = column.getState(y, context);
+                byte flags = column.getFlags(y);
+                if (flags == CompiledPart.SKIP) {
+                    continue;
+                }
+                if (flags != CompiledPart.PLAIN || b == liquid) {
+                    // The same checks as partUncompiled but only for the blocks that need them
+                    CompiledPalette.Info inf = p.getInfo(column.getCharacter(y));
+                    if (b == liquid || b == LostCityTerrainFeature.hardAir) {
+                        blackhole.consume(b);
+                    } else if (inf != null) {
+                        blackhole.consume(inf.isTorch());
+                        blackhole.consume(inf.getLoot());
+                        blackhole.consume(inf.getMobId());
+                    } else if (LostCityTerrainFeature.getStatesNeedingLightingUpdate().contains(b)) {
+                        blackhole.consume(b);
+                    } else if (LostCityTerrainFeature.getStatesNeedingTodo().contains(b)) {
+                        Block block = b.getBlock();
+                        blackhole.consume(block instanceof SaplingBlock || block instanceof FlowerBlock);
+                    }
+                }
+                chunk[index + y] = b;
+            }
+        }
+        return chunk;
+    }
+
+    @Benchmark
+    public int generatePart() {
+        int height = provider.getFeature().generatePart(context, city, nextPart(), transform, city.getCityGroundLevel());
+        // Drop the todos that generatePart adds so they don't pile up over the iterations
+        city.clearTorchTodo();
+        for (BuildingInfo info : new BuildingInfo[] { city, city.getXmin(), city.getZmin(), city.getXmin().getZmin() }) {
+            info.clearLightingUpdateTodo();
+            info.clearSaplingTodo();
+        }
+        return height;
+    }
+}
@@ -3,6 +3,7 @@ package mcjty.lostcities;
 import mcjty.lostcities.api.*;
 import mcjty.lostcities.setup.Registration;
 import mcjty.lostcities.worldgen.IDimensionInfo;
+import mcjty.lostcities.worldgen.lost.AreaCharacteristics;
 import mcjty.lostcities.worldgen.lost.BuildingInfo;
 import mcjty.lostcities.worldgen.lost.cityassets.AssetRegistries;
 import net.minecraft.util.RegistryKey;
@@ -22,11 +23,13 @@ public class LostCitiesImp implements ILostCities {
     public ILostCityInformation getLostInfo(World world) {
         IDimensionInfo dimensionInfo = Registration.LOSTCITY_FEATURE.getDimensionInfo((ISeedReader) world);
         if (dimensionInfo != null) {
-            if (!info.containsKey(world.dimension())) {
-                LostCityInformation gen = new LostCityInformation(dimensionInfo);
+            LostCityInformation gen = info.get(world.dimension());
+            // The dimension info is made again (with new caches) when a world is loaded again
+            if (gen == null || gen.dimensionInfo != dimensionInfo) {
+                gen = new LostCityInformation(dimensionInfo);
                 info.put(world.dimension(), gen);
             }
-            return info.get(world.dimension());
+            return gen;
         }
         return null;
     }
@@ -44,6 +47,16 @@ public class LostCitiesImp implements ILostCities {
             return BuildingInfo.getBuildingInfo(chunkX, chunkZ, dimensionInfo);
         }
 
+        @Override
+        public LostChunkCharacteristics getChunkCharacteristics(int chunkX, int chunkZ) {
+            return BuildingInfo.getChunkCharacteristics(chunkX, chunkZ, dimensionInfo);
+        }
+
+        @Override
+        public LostChunkCharacteristics[] getChunkCharacteristics(int minChunkX, int minChunkZ, int sizeX, int sizeZ) {
+            return AreaCharacteristics.getChunkCharacteristics(minChunkX, minChunkZ, sizeX, sizeZ, dimensionInfo);
+        }
+
         @Override
         public int getRealHeight(int level) {
             return dimensionInfo.getProfile().GROUNDLEVEL + level * 6;
@@ -12,6 +12,31 @@ public interface ILostCityInformation {
      */
     ILostChunkInfo getChunkInfo(int chunkX, int chunkZ);
 
+    /**
+     * Get the characteristics of a single chunk
+     */
+    LostChunkCharacteristics getChunkCharacteristics(int chunkX, int chunkZ);
+
+    /**
+     * Get the characteristics of a whole rectangle of chunks. The characteristics of chunk (x,z) are at
+     * index (z - minChunkZ) * sizeX + (x - minChunkX). By default this asks every chunk separately.
+     * The Lost Cities implementation is faster: it first fills the per-chunk caches of the data that
+     * neighbouring chunks share for the whole rectangle (on multiple threads) and then the chunks
+     * mostly only have to look that data up
+     */
+    default LostChunkCharacteristics[] getChunkCharacteristics(int minChunkX, int minChunkZ, int sizeX, int sizeZ) {
+        if (sizeX < 0 || sizeZ < 0) {
+            throw new IllegalArgumentException("Invalid area size " + sizeX + "x" + sizeZ + "!");
+        }
+        LostChunkCharacteristics[] result = new LostChunkCharacteristics[sizeX * sizeZ];
+        for (int z = 0 ; z < sizeZ ; z++) {
+            for (int x = 0 ; x < sizeX ; x++) {
+                result[z * sizeX + x] = getChunkCharacteristics(minChunkX + x, minChunkZ + z);
+            }
+        }
+        return result;
+    }
+
     /**
      * Convert a 'level' (like a city level) to a real height. This is basically
      * groundLevel + 6*level. Note that for buildings this will actually point
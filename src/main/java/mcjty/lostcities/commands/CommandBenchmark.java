@@ -0,0 +1,109 @@
+package mcjty.lostcities.commands;
+
+import com.mojang.brigadier.Command;
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.builder.ArgumentBuilder;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import mcjty.lostcities.config.LandscapeType;
+import mcjty.lostcities.setup.Registration;
+import mcjty.lostcities.worldgen.ChunkHeightmap;
+import mcjty.lostcities.worldgen.IDimensionInfo;
+import mcjty.lostcities.worldgen.LostCityTerrainFeature;
+import net.minecraft.command.CommandSource;
+import net.minecraft.command.Commands;
+import net.minecraft.entity.player.ServerPlayerEntity;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.text.StringTextComponent;
+import net.minecraft.world.gen.ChunkGenerator;
+import net.minecraft.world.gen.NoiseChunkGenerator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compare the speed of the full noise scan and the column scan for the heightmap of the chunks
+ * around the player. This is done for every landscape type and also verifies that both give
+ * exactly the same heightmap.
+ */
+public class CommandBenchmark implements Command<CommandSource> {
+
+    private static final CommandBenchmark CMD = new CommandBenchmark();
+
+    private static final int RADIUS = 8;
+
+    public static ArgumentBuilder<CommandSource, ?> register(CommandDispatcher<CommandSource> dispatcher) {
+        return Commands.literal("benchmark")
+                .requires(cs -> cs.hasPermission(2))
+                .executes(CMD);
+    }
+
+    @Override
+    public int run(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        ServerPlayerEntity player = context.getSource().getPlayerOrException();
+        IDimensionInfo dimInfo = Registration.LOSTCITY_FEATURE.getDimensionInfo(player.getLevel());
+        if (dimInfo == null) {
+            context.getSource().sendFailure(new StringTextComponent("This is not a Lost City dimension!"));
+            return 0;
+        }
+        ChunkGenerator generator = player.getLevel().getChunkSource().getGenerator();
+        if (!(generator instanceof NoiseChunkGenerator)) {
+            context.getSource().sendFailure(new StringTextComponent("This dimension doesn't use a noise generator!"));
+            return 0;
+        }
+        NoiseChunkGenerator noiseGenerator = (NoiseChunkGenerator) generator;
+
+        ChunkPos center = new ChunkPos(player.blockPosition());
+        List<ChunkPos> chunks = new ArrayList<>();
+        for (int x = center.x - RADIUS ; x <= center.x + RADIUS ; x++) {
+            for (int z = center.z - RADIUS ; z <= center.z + RADIUS ; z++) {
+                chunks.add(new ChunkPos(x, z));
+            }
+        }
+
+        int groundLevel = dimInfo.getProfile().GROUNDLEVEL;
+        for (LandscapeType type : LandscapeType.values()) {
+            // First a round to warm up the JIT and the noise generators
+            scan(noiseGenerator, chunks, type, groundLevel, dimInfo, false);
+            scan(noiseGenerator, chunks, type, groundLevel, dimInfo, true);
+
+            long t1 = System.nanoTime();
+            List<ChunkHeightmap> full = scan(noiseGenerator, chunks, type, groundLevel, dimInfo, false);
+            long t2 = System.nanoTime();
+            List<ChunkHeightmap> column = scan(noiseGenerator, chunks, type, groundLevel, dimInfo, true);
+            long t3 = System.nanoTime();
+
+            int differences = 0;
+            for (int i = 0 ; i < chunks.size() ; i++) {
+                for (int x = 0 ; x < 16 ; x++) {
+                    for (int z = 0 ; z < 16 ; z++) {
+                        if (full.get(i).getHeight(x, z) != column.get(i).getHeight(x, z)) {
+                            differences++;
+                        }
+                    }
+                }
+            }
+
+            double fullMs = (t2 - t1) / 1000000.0;
+            double columnMs = (t3 - t2) / 1000000.0;
+            context.getSource().sendSuccess(new StringTextComponent(String.format("%s: %d chunks, full scan %.1fms, column scan %.1fms (%.2fx), differences %d",
+                    type.getName(), chunks.size(), fullMs, columnMs, fullMs / columnMs, differences)), false);
+        }
+        return 0;
+    }
+
+    private static List<ChunkHeightmap> scan(NoiseChunkGenerator generator, List<ChunkPos> chunks, LandscapeType type, int groundLevel,
+                                             IDimensionInfo dimInfo, boolean columnScan) {
+        List<ChunkHeightmap> heightmaps = new ArrayList<>(chunks.size());
+        for (ChunkPos pos : chunks) {
+            ChunkHeightmap heightmap = new ChunkHeightmap(type, groundLevel, dimInfo.getFeature().base);
+            if (columnScan) {
+                LostCityTerrainFeature.updateHeightmap(generator, pos, heightmap);
+            } else {
+                LostCityTerrainFeature.updateHeightmapFullScan(generator, pos, heightmap);
+            }
+            heightmaps.add(heightmap);
+        }
+        return heightmaps;
+    }
+}
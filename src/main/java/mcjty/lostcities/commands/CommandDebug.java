@@ -9,8 +9,10 @@ import mcjty.lostcities.setup.Registration;
 import mcjty.lostcities.worldgen.ChunkHeightmap;
 import mcjty.lostcities.worldgen.IDimensionInfo;
 import mcjty.lostcities.worldgen.lost.BuildingInfo;
+import mcjty.lostcities.worldgen.lost.CityInfoMemo;
 import mcjty.lostcities.worldgen.lost.CitySphere;
 import mcjty.lostcities.worldgen.lost.Railway;
+import mcjty.lostcities.worldgen.lost.cityassets.CompiledPalette;
 import net.minecraft.command.CommandSource;
 import net.minecraft.command.Commands;
 import net.minecraft.entity.player.ServerPlayerEntity;
@@ -78,6 +80,10 @@ public class CommandDebug implements Command<CommandSource> {
             System.out.println("dimInfo.getProfile().BUILDING_MINFLOORS = " + dimInfo.getProfile().BUILDING_MINFLOORS);
             System.out.println("dimInfo.getProfile().BUILDING_MAXFLOORS = " + dimInfo.getProfile().BUILDING_MAXFLOORS);
             System.out.println("dimInfo.getProfile().CITY_CHANCE = " + dimInfo.getProfile().CITY_CHANCE);
+            System.out.println("cache = " + BuildingInfo.getCacheStatistics(dimInfo));
+            System.out.println("heightmapCache = " + dimInfo.getFeature().getHeightmapCacheStatistics());
+            System.out.println("cityInfoMemo = " + CityInfoMemo.getCacheStatistics(dimInfo));
+            System.out.println("paletteCache = " + CompiledPalette.getCacheStatistics());
         }
         return 0;
     }
@@ -12,6 +12,7 @@ public class ModCommands {
         LiteralCommandNode<CommandSource> commands = dispatcher.register(
                 Commands.literal(LostCities.MODID)
                         .then(CommandDebug.register(dispatcher))
+                        .then(CommandBenchmark.register(dispatcher))
                         .then(CommandMap.register(dispatcher))
                         .then(CommandSaveProfile.register(dispatcher))
         );
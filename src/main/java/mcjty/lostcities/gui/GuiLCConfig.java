@@ -1,15 +1,10 @@
 package mcjty.lostcities.gui;
 
 import com.mojang.blaze3d.matrix.MatrixStack;
-import mcjty.lostcities.api.LostChunkCharacteristics;
-import mcjty.lostcities.api.RailChunkType;
 import mcjty.lostcities.config.LostCityConfiguration;
 import mcjty.lostcities.config.LostCityProfile;
 import mcjty.lostcities.gui.elements.*;
 import mcjty.lostcities.setup.Config;
-import mcjty.lostcities.worldgen.lost.BuildingInfo;
-import mcjty.lostcities.worldgen.lost.Highway;
-import mcjty.lostcities.worldgen.lost.Railway;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.gui.FontRenderer;
 import net.minecraft.client.gui.screen.Screen;
@@ -41,6 +36,7 @@ public class GuiLCConfig extends Screen {
 
     private final List<GuiElement> elements = new ArrayList<>();
 
+    private final PreviewMap previewMap = new PreviewMap();
     private final LostCitySetup localSetup = new LostCitySetup(this::refreshPreview);
 
     public GuiLCConfig(Screen parent) { // @todo 1.16}, WorldType worldType) {
@@ -228,9 +224,7 @@ public class GuiLCConfig extends Screen {
     }
 
     public void refreshPreview() {
-        BuildingInfo.cleanCache();
-        Highway.cleanCache();
-        Railway.cleanCache();
+        previewMap.invalidate();
     }
 
     private void renderExtra(MatrixStack stack) {
@@ -239,46 +233,17 @@ public class GuiLCConfig extends Screen {
 
         localSetup.get().ifPresent(profile -> {
             if ("Cities".equals(mode)) {
-                renderPreviewMap(stack, profile, false);
+                previewMap.render(stack, this.width - 160, 50, profile, seed, false);
             } else if ("Buildings".equals(mode)) {
                 renderPreviewCity(stack, profile, false);
             } else if ("Damage".equals(mode)) {
                 renderPreviewCity(stack, profile, true);
             } else if ("Transport".equals(mode)) {
-                renderPreviewTransports(stack, profile);
+                previewMap.render(stack, this.width - 160, 50, profile, seed, true);
             }
         });
     }
 
-    private void renderPreviewTransports(MatrixStack stack, LostCityProfile profile) {
-        renderPreviewMap(stack, profile, true);
-        Random rand = new Random(seed);
-        NullDimensionInfo diminfo = new NullDimensionInfo(profile, seed);
-        for (int z = 0; z < 50; z++) {
-            for (int x = 0; x < 50; x++) {
-                int sx = x * 3 + this.width - 160;
-                int sz = z * 3 + 50;
-                int color = 0;
-                Railway.RailChunkInfo type = Railway.getRailChunkType(x, z, diminfo, profile);
-                if (type.getType() != RailChunkType.NONE) {
-                    color = 0x99992222;
-                }
-                int levelX = Highway.getXHighwayLevel(x, z, diminfo, profile);
-                int levelZ = Highway.getZHighwayLevel(x, z, diminfo, profile);
-                if (levelX >= 0 || levelZ >= 0) {
-                    if (color == 0) {
-                        color = 0x99ffffff;
-                    } else {
-                        color = 0x99777777;
-                    }
-                }
-                if (color != 0) {
-                    fill(stack, sx, sz, sx + 3, sz + 3, color);
-                }
-            }
-        }
-    }
-
     private void renderPreviewCity(MatrixStack stack, LostCityProfile profile, boolean showDamage) {
         int base = 50 + 120;
         int leftRender = this.width - 157;
@@ -363,49 +328,6 @@ public class GuiLCConfig extends Screen {
         }
     }
 
-    private static int soften(int color, boolean soft) {
-        if (soft) {
-            int r = (color & 0xff0000) >> 16;
-            int g = (color & 0xff00) >> 8;
-            int b = (color & 0xff);
-            return (r / 3) << 16 | (g / 3) << 8 | (b / 3);
-        }
-        return color;
-    }
-
-    private void renderPreviewMap(MatrixStack stack, LostCityProfile profile, boolean soft) {
-        NullDimensionInfo diminfo = new NullDimensionInfo(profile, seed);
-        for (int z = 0; z < 50; z++) {
-            for (int x = 0; x < 50; x++) {
-                int sx = x * 3 + this.width - 160;
-                int sz = z * 3 + 50;
-                int color = 0x005500;
-                char b = diminfo.getBiomeChar(x, z);
-                switch (b) {
-                    case 'p':
-                        break;
-                    case '-':
-                    case '=':
-                        color = 0x000066; break;
-                    case '#': color = 0x447744; break;
-                    case '+': color = 0x335533; break;
-                    case '*':
-                    case 'd':
-                        color = 0xcccc55; break;
-                }
-                fill(stack, sx, sz, sx + 3, sz + 3, 0xff000000 + soften(color, soft));
-                LostChunkCharacteristics characteristics = BuildingInfo.getChunkCharacteristics(x, z, diminfo);
-                if (characteristics.isCity) {
-                    color = 0x995555;
-                    if (BuildingInfo.hasBuildingGui(x, z, diminfo, characteristics)) {
-                        color = 0xffffff;
-                    }
-                    fill(stack, sx, sz, sx + 2, sz + 2, 0xff000000 + soften(color, soft));
-                }
-            }
-        }
-    }
-
     private void updateValues() {
         elements.forEach(GuiElement::update);
         refreshPreview();
@@ -425,12 +347,10 @@ public class GuiLCConfig extends Screen {
 
 
     private void cancel() {
-        refreshPreview();
         Minecraft.getInstance().setScreen(parent);
     }
 
     private void done() {
-        refreshPreview();
         LostCitySetup.CLIENT_SETUP.copyFrom(localSetup);
         LostCityProfile customizedProfile = localSetup.getCustomizedProfile();
         if ("customized".equals(localSetup.getProfile()) && customizedProfile != null) {
@@ -443,6 +363,12 @@ public class GuiLCConfig extends Screen {
         Minecraft.getInstance().setScreen(parent);
     }
 
+    @Override
+    public void removed() {
+        // This also drops the caches of the preview
+        previewMap.close();
+    }
+
     @Override
     public void render(MatrixStack stack, int mouseX, int mouseY, float partialTicks) {
         this.renderBackground(stack);
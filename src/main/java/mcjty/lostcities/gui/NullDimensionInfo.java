@@ -2,6 +2,7 @@ package mcjty.lostcities.gui;
 
 import mcjty.lostcities.config.LostCityProfile;
 import mcjty.lostcities.worldgen.ChunkHeightmap;
+import mcjty.lostcities.worldgen.GenerationCaches;
 import mcjty.lostcities.worldgen.IDimensionInfo;
 import mcjty.lostcities.worldgen.LostCityTerrainFeature;
 import mcjty.lostcities.worldgen.lost.cityassets.AssetRegistries;
@@ -80,6 +81,7 @@ public class NullDimensionInfo implements IDimensionInfo {
 
     private final Registry<Biome> biomeRegistry;
     private final LostCityTerrainFeature feature;
+    private final GenerationCaches caches = new GenerationCaches(this);
 
     public NullDimensionInfo(LostCityProfile profile, long seed) {
         this.profile = profile;
@@ -135,6 +137,11 @@ public class NullDimensionInfo implements IDimensionInfo {
         return feature;
     }
 
+    @Override
+    public GenerationCaches getCaches() {
+        return caches;
+    }
+
     @Override
     public ChunkHeightmap getHeightmap(int chunkX, int chunkZ) {
         ChunkHeightmap heightmap = new ChunkHeightmap(profile.LANDSCAPE_TYPE, profile.GROUNDLEVEL, getFeature().base);
@@ -0,0 +1,240 @@
+package mcjty.lostcities.gui;
+
+import com.mojang.blaze3d.matrix.MatrixStack;
+import mcjty.lostcities.LostCities;
+import mcjty.lostcities.api.LostChunkCharacteristics;
+import mcjty.lostcities.api.RailChunkType;
+import mcjty.lostcities.config.LostCityProfile;
+import mcjty.lostcities.worldgen.lost.BuildingInfo;
+import mcjty.lostcities.worldgen.lost.Highway;
+import mcjty.lostcities.worldgen.lost.Railway;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.gui.AbstractGui;
+import net.minecraft.client.renderer.texture.DynamicTexture;
+import net.minecraft.client.renderer.texture.NativeImage;
+import net.minecraft.util.ResourceLocation;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The map of 50x50 chunks that is shown in the configuration gui. The map is calculated on a
+ * background thread into an image and drawn as a single texture. It is only calculated again when the
+ * profile, the seed or the kind of map changes or when invalidate() is called (a value was changed).
+ * A calculation that is no longer needed is cancelled. Until the new map is ready the old one stays visible.
+ * The map is calculated with its own NullDimensionInfo so all the caches it fills are private to the
+ * preview and are dropped with it. Switching between the city and the transport map keeps that dimension info
+ */
+public class PreviewMap {
+
+    public static final int CHUNKS = 50;
+    private static final int CELL = 3;
+    public static final int SIZE = CHUNKS * CELL;
+
+    private static final ResourceLocation TEXTURE = new ResourceLocation(LostCities.MODID, "preview_map");
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Lost Cities Preview");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private DynamicTexture texture = null;
+    private NullDimensionInfo diminfo = null;
+    private Task current = null;
+
+    /**
+     * Draw the map (if there is one already) and start calculating a new one if needed
+     */
+    public void render(MatrixStack stack, int x, int y, LostCityProfile profile, long seed, boolean transport) {
+        if (current == null || current.profile != profile || current.seed != seed || current.transport != transport) {
+            start(profile, seed, transport);
+        }
+        int[] pixels = current.takePixels();
+        if (pixels != null) {
+            upload(pixels);
+        }
+        if (texture != null) {
+            Minecraft.getInstance().getTextureManager().bind(TEXTURE);
+            AbstractGui.blit(stack, x, y, 0, 0, SIZE, SIZE, SIZE, SIZE);
+        }
+    }
+
+    /**
+     * The profile was changed. Cancel the current calculation and calculate a new map on the next render
+     */
+    public void invalidate() {
+        if (current != null) {
+            current.cancelled = true;
+            current = null;
+        }
+        diminfo = null;
+    }
+
+    /**
+     * Stop calculating and free the texture and the caches
+     */
+    public void close() {
+        invalidate();
+        if (texture != null) {
+            Minecraft.getInstance().getTextureManager().release(TEXTURE);
+            texture = null;
+        }
+    }
+
+    private void start(LostCityProfile profile, long seed, boolean transport) {
+        if (current != null) {
+            current.cancelled = true;
+        }
+        if (diminfo == null || diminfo.getProfile() != profile || diminfo.getSeed() != seed) {
+            diminfo = new NullDimensionInfo(profile, seed);
+        }
+        current = new Task(diminfo, transport);
+        executor.submit(current);
+    }
+
+    private void upload(int[] pixels) {
+        if (texture == null) {
+            texture = new DynamicTexture(SIZE, SIZE, true);
+            Minecraft.getInstance().getTextureManager().register(TEXTURE, texture);
+        }
+        NativeImage image = texture.getPixels();
+        for (int y = 0 ; y < SIZE ; y++) {
+            for (int x = 0 ; x < SIZE ; x++) {
+                int argb = pixels[y * SIZE + x];
+                // NativeImage wants ABGR
+                image.setPixelRGBA(x, y, (argb & 0xff00ff00) | ((argb & 0xff) << 16) | ((argb >> 16) & 0xff));
+            }
+        }
+        texture.upload();
+    }
+
+    private static class Task implements Runnable {
+        private final NullDimensionInfo diminfo;
+        private final LostCityProfile profile;
+        private final long seed;
+        private final boolean transport;
+        private volatile boolean cancelled = false;
+        private volatile int[] pixels = null;
+
+        private Task(NullDimensionInfo diminfo, boolean transport) {
+            this.diminfo = diminfo;
+            this.profile = diminfo.getProfile();
+            this.seed = diminfo.getSeed();
+            this.transport = transport;
+        }
+
+        private int[] takePixels() {
+            int[] p = pixels;
+            if (p != null) {
+                pixels = null;
+            }
+            return p;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            try {
+                int[] result = new int[SIZE * SIZE];
+                for (int z = 0 ; z < CHUNKS ; z++) {
+                    for (int x = 0 ; x < CHUNKS ; x++) {
+                        if (cancelled) {
+                            return;
+                        }
+                        renderChunk(result, x, z);
+                    }
+                }
+                pixels = result;
+            } catch (RuntimeException e) {
+                LostCities.getLogger().error("Error calculating the preview map!", e);
+                throw e;
+            }
+        }
+
+        private void renderChunk(int[] result, int x, int z) {
+            int color = 0x005500;
+            char b = diminfo.getBiomeChar(x, z);
+            switch (b) {
+                case 'p':
+                    break;
+                case '-':
+                case '=':
+                    color = 0x000066; break;
+                case '#': color = 0x447744; break;
+                case '+': color = 0x335533; break;
+                case '*':
+                case 'd':
+                    color = 0xcccc55; break;
+            }
+            fill(result, x, z, CELL, 0xff000000 + soften(color, transport));
+            LostChunkCharacteristics characteristics = BuildingInfo.getChunkCharacteristics(x, z, diminfo);
+            if (characteristics.isCity) {
+                color = 0x995555;
+                if (BuildingInfo.hasBuildingGui(x, z, diminfo, characteristics)) {
+                    color = 0xffffff;
+                }
+                fill(result, x, z, CELL - 1, 0xff000000 + soften(color, transport));
+            }
+
+            if (transport) {
+                color = 0;
+                Railway.RailChunkInfo type = Railway.getRailChunkType(x, z, diminfo, profile);
+                if (type.getType() != RailChunkType.NONE) {
+                    color = 0x99992222;
+                }
+                int levelX = Highway.getXHighwayLevel(x, z, diminfo, profile);
+                int levelZ = Highway.getZHighwayLevel(x, z, diminfo, profile);
+                if (levelX >= 0 || levelZ >= 0) {
+                    if (color == 0) {
+                        color = 0x99ffffff;
+                    } else {
+                        color = 0x99777777;
+                    }
+                }
+                if (color != 0) {
+                    blend(result, x, z, CELL, color);
+                }
+            }
+        }
+    }
+
+    private static int soften(int color, boolean soft) {
+        if (soft) {
+            int r = (color & 0xff0000) >> 16;
+            int g = (color & 0xff00) >> 8;
+            int b = (color & 0xff);
+            return (r / 3) << 16 | (g / 3) << 8 | (b / 3);
+        }
+        return color;
+    }
+
+    private static void fill(int[] result, int chunkX, int chunkZ, int size, int color) {
+        for (int dz = 0 ; dz < size ; dz++) {
+            int index = (chunkZ * CELL + dz) * SIZE + chunkX * CELL;
+            for (int dx = 0 ; dx < size ; dx++) {
+                result[index + dx] = color;
+            }
+        }
+    }
+
+    // Draw a transparent color over what is already there (the map itself is opaque)
+    private static void blend(int[] result, int chunkX, int chunkZ, int size, int color) {
+        int alpha = (color >>> 24) & 0xff;
+        for (int dz = 0 ; dz < size ; dz++) {
+            int index = (chunkZ * CELL + dz) * SIZE + chunkX * CELL;
+            for (int dx = 0 ; dx < size ; dx++) {
+                int old = result[index + dx];
+                int mixed = 0xff000000;
+                for (int shift = 0 ; shift < 24 ; shift += 8) {
+                    int o = (old >> shift) & 0xff;
+                    int c = (color >> shift) & 0xff;
+                    mixed |= ((c * alpha + o * (255 - alpha)) / 255) << shift;
+                }
+                result[index + dx] = mixed;
+            }
+        }
+    }
+}
@@ -47,6 +47,6 @@ public class ClientEventHandlers {
     public void onPlayerLoggedOut(PlayerEvent.PlayerLoggedOutEvent event) {
         LostCitySetup.CLIENT_SETUP.reset();
         Config.reset();
-        LostCityFeature.globalDimensionInfoDirtyCounter++;
+        LostCityFeature.globalDimensionInfoDirtyCounter.incrementAndGet();
     }
 }
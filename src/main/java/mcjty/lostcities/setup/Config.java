@@ -33,6 +33,11 @@ public class Config {
             "$lostcities/userassets.json"
     };
     public static final ForgeConfigSpec.ConfigValue<List<? extends String>> ASSETS;
+    public static final ForgeConfigSpec.BooleanValue USE_ASSET_BUNDLE;
+
+    public static final ForgeConfigSpec.IntValue BUILDING_INFO_CACHE_SIZE;
+    public static final ForgeConfigSpec.IntValue HEIGHTMAP_CACHE_SIZE;
+    public static final ForgeConfigSpec.IntValue CITY_INFO_CACHE_SIZE;
 
 
     private static final String[] DEFAULT_DIMENSION_PROFILES = new String[] {
@@ -132,6 +137,22 @@ public class Config {
                 .comment("A list of assets that Lost Cities will use to load city data. Paths starting with '/' are relative to the Lost City resource pack. Paths starting with '$' are relative to the main config directory")
                 .defineList("assets", Lists.newArrayList(DEFAULT_ASSETS), s -> s instanceof String);
 
+        USE_ASSET_BUNDLE = COMMON_BUILDER
+                .comment("If true the loaded assets are also written to a binary bundle (config/lostcities/assets.bundle) which is used instead of the json files on the next start as long as none of the assets (or installed blocks) changed")
+                .define("useAssetBundle", true);
+
+        BUILDING_INFO_CACHE_SIZE = COMMON_BUILDER
+                .comment("The maximum number of chunks (per dimension) for which city information is kept in memory. When more chunks are needed the least recently used ones are forgotten and calculated again when needed")
+                .defineInRange("buildingInfoCacheSize", 50000, 1000, 10000000);
+
+        HEIGHTMAP_CACHE_SIZE = COMMON_BUILDER
+                .comment("The maximum number of chunks (per dimension) for which the predicted terrain height is kept in memory")
+                .defineInRange("heightmapCacheSize", 20000, 1000, 10000000);
+
+        CITY_INFO_CACHE_SIZE = COMMON_BUILDER
+                .comment("The maximum number of chunks (per dimension) for which the raw city information (city flag, city factor and city level) and the explosions starting there are kept in memory")
+                .defineInRange("cityInfoCacheSize", 200000, 1000, 10000000);
+
         SELECTED_PROFILE = SERVER_BUILDER.define("selectedProfile", "<CHECK>"); // Default is dummy value that tells the system to check in profileFromClient
         SELECTED_CUSTOM_JSON = SERVER_BUILDER.define("selectedCustomJson", "");
 
@@ -6,6 +6,7 @@ import mcjty.lostcities.varia.CustomTeleporter;
 import mcjty.lostcities.varia.WorldTools;
 import mcjty.lostcities.worldgen.LostCityFeature;
 import mcjty.lostcities.worldgen.lost.*;
+import mcjty.lostcities.worldgen.lost.cityassets.CompiledPalette;
 import net.minecraft.block.*;
 import net.minecraft.entity.player.PlayerEntity;
 import net.minecraft.util.Direction;
@@ -21,6 +22,7 @@ import net.minecraftforge.common.BiomeDictionary;
 import net.minecraftforge.event.RegisterCommandsEvent;
 import net.minecraftforge.event.entity.player.PlayerSleepInBedEvent;
 import net.minecraftforge.event.world.BiomeLoadingEvent;
+import net.minecraftforge.event.world.WorldEvent;
 import net.minecraftforge.eventbus.api.EventPriority;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
 import net.minecraftforge.fml.event.server.FMLServerStartingEvent;
@@ -37,12 +39,18 @@ public class ForgeEventHandlers {
 
     @SubscribeEvent
     public void onServerStarting(FMLServerStartingEvent event) {
-        BuildingInfo.cleanCache();
-        Highway.cleanCache();
-        Railway.cleanCache();
-        BiomeInfo.cleanCache();
+        // New dimension infos (with empty generation caches) are made when they are needed
+        LostCityFeature.globalDimensionInfoDirtyCounter.incrementAndGet();
         City.cleanCache();
-        CitySphere.cleanCache();
+        CompiledPalette.cleanCache();
+    }
+
+    @SubscribeEvent
+    public void onWorldUnload(WorldEvent.Unload event) {
+        if (event.getWorld() instanceof ServerWorld) {
+            // Drop the dimension info of this world right away. That frees all its generation caches
+            Registration.LOSTCITY_FEATURE.removeDimensionInfo(((ServerWorld) event.getWorld()).dimension());
+        }
     }
 
     @SubscribeEvent(priority = EventPriority.HIGH)
@@ -4,6 +4,7 @@ import mcjty.lostcities.LostCities;
 import mcjty.lostcities.config.LostCityConfiguration;
 import mcjty.lostcities.network.PacketHandler;
 import mcjty.lostcities.worldgen.LostCityFeature;
+import mcjty.lostcities.worldgen.lost.cityassets.AssetBundle;
 import mcjty.lostcities.worldgen.lost.cityassets.AssetRegistries;
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.fml.ModList;
@@ -15,6 +16,8 @@ import org.apache.logging.log4j.Logger;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 public class ModSetup {
@@ -80,21 +83,24 @@ public class ModSetup {
 
     private void readAssets() {
         AssetRegistries.reset();
+        Path configPath = FMLPaths.CONFIGDIR.get();
+        List<AssetBundle.Source> sources = new ArrayList<>();
         for (String path : Config.ASSETS.get()) {
             if (path.startsWith("/")) {
-                try(InputStream inputstream = LostCities.class.getResourceAsStream(path)) {
-                    AssetRegistries.load(inputstream, path);
-                } catch (IOException ex) {
-                    throw new UncheckedIOException(ex);
-                }
+                sources.add(AssetBundle.Source.resource(path));
             } else if (path.startsWith("$")) {
-                Path configPath = FMLPaths.CONFIGDIR.get();
                 File file = new File(configPath + File.separator + path.substring(1));
-                AssetRegistries.load(file);
+                sources.add(AssetBundle.Source.file(path, file));
             } else {
                 throw new RuntimeException("Invalid path for lostcity resource in 'assets' config!");
             }
         }
+        File bundleFile = null;
+        if (Config.USE_ASSET_BUNDLE.get()) {
+            bundleFile = new File(configPath + File.separator + "lostcities" + File.separator + "assets.bundle");
+        }
+        AssetBundle.load(sources, bundleFile);
+        AssetRegistries.compile();
 
         if (LostCityConfiguration.DEBUG) {
             // @todo 1.14
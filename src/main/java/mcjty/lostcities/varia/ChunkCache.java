@@ -0,0 +1,209 @@
+package mcjty.lostcities.varia;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.util.math.ChunkPos;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * A bounded cache for information that is calculated per chunk. When the cache is full the least
+ * recently used chunk is dropped. Only store things here that can be calculated again (from the seed)
+ * when they are needed after being evicted. Entries for which the 'pinned' predicate is true are
+ * never evicted (so that pending work isn't lost)
+ *
+ * This cache is safe to use from multiple worldgen threads. The chunks are spread over a number of
+ * stripes that each have their own lock. No lock is held while a missing value is being calculated
+ * so calculating a value may freely look up other chunks in the same cache.
+ */
+public class ChunkCache<T> {
+
+    private static final int STRIPES = 64;     // Must be a power of two
+
+    private final Stripe<T>[] stripes;
+    private final int capacity;
+    private final Predicate<T> pinned;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    public ChunkCache(int capacity) {
+        this(capacity, t -> false);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ChunkCache(int capacity, Predicate<T> pinned) {
+        this.capacity = capacity;
+        this.pinned = pinned;
+        stripes = new Stripe[STRIPES];
+        int stripeCapacity = Math.max(1, (capacity + STRIPES - 1) / STRIPES);
+        for (int i = 0 ; i < STRIPES ; i++) {
+            stripes[i] = new Stripe<>(stripeCapacity);
+        }
+    }
+
+    private Stripe<T> getStripe(long key) {
+        return stripes[ChunkMap.getStripe(key, STRIPES)];
+    }
+
+    @Nullable
+    public T get(int chunkX, int chunkZ) {
+        long key = ChunkPos.asLong(chunkX, chunkZ);
+        T value = getStripe(key).get(key);
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Add a value unless another thread was faster. Returns the value that is actually in the cache
+     * (so either the given one or the one from the other thread)
+     */
+    public T putIfAbsent(int chunkX, int chunkZ, T value) {
+        long key = ChunkPos.asLong(chunkX, chunkZ);
+        return getStripe(key).putIfAbsent(key, value, this);
+    }
+
+    /**
+     * Get the value for this chunk and calculate it (outside of any lock) if it is missing. If another
+     * thread is already calculating the same chunk we wait for that result instead of doing the work
+     * twice. The supplier must never ask for the same chunk again (that would wait forever).
+     */
+    public T computeIfAbsent(int chunkX, int chunkZ, Supplier<T> supplier) {
+        T value = get(chunkX, chunkZ);
+        if (value != null) {
+            return value;
+        }
+        long key = ChunkPos.asLong(chunkX, chunkZ);
+        Stripe<T> stripe = getStripe(key);
+        CompletableFuture<T> future;
+        synchronized (stripe) {
+            value = stripe.map.get(key);
+            if (value != null) {
+                return value;
+            }
+            future = stripe.pending.get(key);
+            if (future == null) {
+                stripe.pending.put(key, new CompletableFuture<>());
+            }
+        }
+
+        if (future != null) {
+            coalesced.increment();
+            return future.join();
+        }
+
+        try {
+            value = supplier.get();
+        } catch (RuntimeException | Error e) {
+            CompletableFuture<T> failed;
+            synchronized (stripe) {
+                failed = stripe.pending.remove(key);
+            }
+            failed.completeExceptionally(e);
+            throw e;
+        }
+        CompletableFuture<T> done;
+        synchronized (stripe) {
+            value = stripe.putIfAbsent(key, value, this);
+            done = stripe.pending.remove(key);
+        }
+        done.complete(value);
+        return value;
+    }
+
+    public void clear() {
+        for (Stripe<T> stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe<T> stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size() + "/" + capacity + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + ", coalesced=" + getCoalesced();
+    }
+
+    private static class Stripe<T> {
+        private final Long2ObjectLinkedOpenHashMap<T> map = new Long2ObjectLinkedOpenHashMap<>();
+        private final Long2ObjectOpenHashMap<CompletableFuture<T>> pending = new Long2ObjectOpenHashMap<>();
+        private final int capacity;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized T get(long key) {
+            return map.getAndMoveToLast(key);
+        }
+
+        synchronized T putIfAbsent(long key, T value, ChunkCache<T> cache) {
+            T old = map.getAndMoveToLast(key);
+            if (old != null) {
+                return old;
+            }
+            map.putAndMoveToLast(key, value);
+            evict(cache);
+            return value;
+        }
+
+        private void evict(ChunkCache<T> cache) {
+            // Pinned entries are moved to the back so we need to stop after having seen every entry once
+            int tries = map.size();
+            while (map.size() > capacity && tries > 0) {
+                tries--;
+                long key = map.firstLongKey();
+                if (cache.pinned.test(map.get(key))) {
+                    map.getAndMoveToLast(key);
+                } else {
+                    map.removeFirst();
+                    cache.evictions.increment();
+                }
+            }
+        }
+
+        synchronized void clear() {
+            map.clear();
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+    }
+}
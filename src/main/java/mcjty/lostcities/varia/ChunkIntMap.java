@@ -0,0 +1,57 @@
+package mcjty.lostcities.varia;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.minecraft.util.math.ChunkPos;
+
+/**
+ * The int version of ChunkMap. Values are stored unboxed. get() returns NO_VALUE for chunks
+ * that are not in the map (so NO_VALUE itself can't be stored).
+ */
+public class ChunkIntMap {
+
+    public static final int NO_VALUE = Integer.MIN_VALUE;
+
+    private final Long2IntOpenHashMap[] stripes;
+
+    public ChunkIntMap() {
+        stripes = new Long2IntOpenHashMap[ChunkMap.STRIPES];
+        for (int i = 0 ; i < ChunkMap.STRIPES ; i++) {
+            stripes[i] = new Long2IntOpenHashMap();
+            stripes[i].defaultReturnValue(NO_VALUE);
+        }
+    }
+
+    public int get(int chunkX, int chunkZ) {
+        long key = ChunkPos.asLong(chunkX, chunkZ);
+        Long2IntOpenHashMap map = stripes[ChunkMap.getStripe(key, ChunkMap.STRIPES)];
+        synchronized (map) {
+            return map.get(key);
+        }
+    }
+
+    public void put(int chunkX, int chunkZ, int value) {
+        long key = ChunkPos.asLong(chunkX, chunkZ);
+        Long2IntOpenHashMap map = stripes[ChunkMap.getStripe(key, ChunkMap.STRIPES)];
+        synchronized (map) {
+            map.put(key, value);
+        }
+    }
+
+    public void clear() {
+        for (Long2IntOpenHashMap map : stripes) {
+            synchronized (map) {
+                map.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Long2IntOpenHashMap map : stripes) {
+            synchronized (map) {
+                size += map.size();
+            }
+        }
+        return size;
+    }
+}
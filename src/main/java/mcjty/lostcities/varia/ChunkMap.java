@@ -0,0 +1,93 @@
+package mcjty.lostcities.varia;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.util.math.ChunkPos;
+
+import javax.annotation.Nullable;
+import java.util.function.Supplier;
+
+/**
+ * A thread safe map from a chunk position to a value. The position is packed in a long and the
+ * entries are kept in open addressing hash maps so a lookup doesn't allocate anything. The map
+ * doesn't know about dimensions so use one per dimension.
+ */
+public class ChunkMap<V> {
+
+    static final int STRIPES = 16;     // Must be a power of two
+
+    private final Long2ObjectOpenHashMap<V>[] stripes;
+
+    @SuppressWarnings("unchecked")
+    public ChunkMap() {
+        stripes = new Long2ObjectOpenHashMap[STRIPES];
+        for (int i = 0 ; i < STRIPES ; i++) {
+            stripes[i] = new Long2ObjectOpenHashMap<>();
+        }
+    }
+
+    static int getStripe(long key, int stripes) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 58) & (stripes - 1);
+    }
+
+    @Nullable
+    public V get(int chunkX, int chunkZ) {
+        long key = ChunkPos.asLong(chunkX, chunkZ);
+        Long2ObjectOpenHashMap<V> map = stripes[getStripe(key, STRIPES)];
+        synchronized (map) {
+            return map.get(key);
+        }
+    }
+
+    public void put(int chunkX, int chunkZ, V value) {
+        long key = ChunkPos.asLong(chunkX, chunkZ);
+        Long2ObjectOpenHashMap<V> map = stripes[getStripe(key, STRIPES)];
+        synchronized (map) {
+            map.put(key, value);
+        }
+    }
+
+    /**
+     * Return the value for this chunk or calculate and store it if it is missing. The value is
+     * calculated outside of any lock so it is possible that two threads calculate the same value.
+     * The first one to be stored wins.
+     */
+    public V computeIfAbsent(int chunkX, int chunkZ, Supplier<V> supplier) {
+        long key = ChunkPos.asLong(chunkX, chunkZ);
+        Long2ObjectOpenHashMap<V> map = stripes[getStripe(key, STRIPES)];
+        V value;
+        synchronized (map) {
+            value = map.get(key);
+        }
+        if (value != null) {
+            return value;
+        }
+        value = supplier.get();
+        synchronized (map) {
+            V old = map.get(key);
+            if (old != null) {
+                return old;
+            }
+            map.put(key, value);
+            return value;
+        }
+    }
+
+    public void clear() {
+        for (Long2ObjectOpenHashMap<V> map : stripes) {
+            synchronized (map) {
+                map.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Long2ObjectOpenHashMap<V> map : stripes) {
+            synchronized (map) {
+                size += map.size();
+            }
+        }
+        return size;
+    }
+}
@@ -25,7 +25,30 @@ import java.util.*;
 
 public class Tools {
 
+    // While assets are loaded resolved states are remembered here (and can be filled in from an asset bundle)
+    private static volatile Map<String, BlockState> stateCache = null;
+
+    /**
+     * Remember (or stop remembering if null) the states that stringToState() resolves. The map must be thread safe
+     */
+    public static void setStateCache(@Nullable Map<String, BlockState> cache) {
+        stateCache = cache;
+    }
+
     public static BlockState stringToState(String s) {
+        Map<String, BlockState> cache = stateCache;
+        if (cache == null) {
+            return parseState(s);
+        }
+        BlockState state = cache.get(s);
+        if (state == null) {
+            state = parseState(s);
+            cache.put(s, state);
+        }
+        return state;
+    }
+
+    private static BlockState parseState(String s) {
         if ("minecraft:double_stone_slab".equals(s)) {
             return Blocks.SMOOTH_STONE_SLAB.defaultBlockState().setValue(SlabBlock.TYPE, SlabType.DOUBLE);
         }
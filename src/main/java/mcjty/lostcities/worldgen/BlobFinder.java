@@ -0,0 +1,246 @@
+package mcjty.lostcities.worldgen;
+
+import mcjty.lostcities.worldgen.lost.BuildingInfo;
+import net.minecraft.block.BlockState;
+
+import java.util.Arrays;
+
+/**
+ * Finds the connected groups of blocks ('blobs') in a chunk after an explosion. Blocks are packed
+ * in an int index (y-start, x, z) and everything is kept in flat arrays that are reused for every
+ * chunk generated by the same thread. A blob is found with a breadth first search starting from
+ * every block between 'start' and 'end' that isn't part of a blob yet. For every blob we count
+ * the connections it has to the world outside (the neighbouring chunks and the blocks below 'start')
+ */
+public class BlobFinder {
+
+    private static final byte UNKNOWN = 0;
+    private static final byte EMPTY = 1;
+    private static final byte SOLID = 2;
+    private static final byte MOVING = 3;
+
+    private static final int MAX_CELLS = 16 * 16 * 256;
+
+    private final byte[] status = new byte[MAX_CELLS];
+    private final int[] label = new int[MAX_CELLS];      // Blob of a block (1 based). 0 if none
+    private final int[] cells = new int[MAX_CELLS];      // Blocks of all blobs. Every blob is a consecutive range
+
+    // Per blob (indexed by blob number)
+    private int[] blobStart = new int[64];
+    private int[] blobEnd = new int[64];
+    private int[] blobConnections = new int[64];
+    private int[] blobLowestY = new int[64];
+    private int[] sorted = new int[64];
+    private final int[] heightCounts = new int[257];
+    private int blobCount;
+    private int emptyBlobs;
+
+    private ChunkDriver driver;
+    private int start;
+    private int cellCount;
+    private int xminHeight;
+    private int xmaxHeight;
+    private int zminHeight;
+    private int zmaxHeight;
+
+    /**
+     * Find all blobs that have a block between start (inclusive) and end (exclusive)
+     */
+    public void find(ChunkDriver driver, BuildingInfo info, BlockState air, BlockState liquid, int start, int end) {
+        this.driver = driver;
+        this.start = start;
+        int size = (256 - start) << 8;
+        Arrays.fill(status, 0, size, UNKNOWN);
+        Arrays.fill(label, 0, size, 0);
+        blobCount = 0;
+        emptyBlobs = 0;
+        cellCount = 0;
+        xminHeight = info.getXmin().getMaxHeight() + 3;
+        xmaxHeight = info.getXmax().getMaxHeight() + 3;
+        zminHeight = info.getZmin().getMaxHeight() + 3;
+        zmaxHeight = info.getZmax().getMaxHeight() + 3;
+
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                for (int y = start; y < end; y++) {
+                    int index = getIndex(x, y, z);
+                    if (label[index] == 0) {
+                        driver.current(x, y, z);
+                        BlockState p = driver.getBlock();
+                        if (p != air && p != liquid) {
+                            if (LostCityTerrainFeature.isEmpty(p)) {
+                                // Still counts as a blob (without blocks)
+                                status[index] = EMPTY;
+                                emptyBlobs++;
+                            } else {
+                                status[index] = SOLID;
+                                scan(index);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        sortBlobs();
+        this.driver = null;
+    }
+
+    private void scan(int first) {
+        if (blobCount == blobStart.length) {
+            int newSize = blobCount * 2;
+            blobStart = Arrays.copyOf(blobStart, newSize);
+            blobEnd = Arrays.copyOf(blobEnd, newSize);
+            blobConnections = Arrays.copyOf(blobConnections, newSize);
+            blobLowestY = Arrays.copyOf(blobLowestY, newSize);
+            sorted = Arrays.copyOf(sorted, newSize);
+        }
+        int blob = blobCount++;
+        int id = blob + 1;
+        int connections = 0;
+        int lowestY = 256;
+
+        int head = cellCount;
+        label[first] = id;
+        cells[cellCount++] = first;
+        blobStart[blob] = head;
+        while (head < cellCount) {
+            int index = cells[head++];
+            int x = getX(index);
+            int y = getY(index);
+            int z = getZ(index);
+            if (y < lowestY) {
+                lowestY = y;
+            }
+            connections += visit(x, y + 1, z, id);
+            connections += visit(x, y - 1, z, id);
+            connections += visit(x + 1, y, z, id);
+            connections += visit(x - 1, y, z, id);
+            connections += visit(x, y, z + 1, id);
+            connections += visit(x, y, z - 1, id);
+        }
+        blobEnd[blob] = cellCount;
+        blobConnections[blob] = connections;
+        blobLowestY[blob] = lowestY;
+    }
+
+    // Add a neighbour to the blob if needed. Returns the connections it adds if it is outside
+    private int visit(int x, int y, int z, int id) {
+        if (x < 0) {
+            return y <= xminHeight ? 1 : 0;
+        }
+        if (x > 15) {
+            return y <= xmaxHeight ? 1 : 0;
+        }
+        if (z < 0) {
+            return y <= zminHeight ? 1 : 0;
+        }
+        if (z > 15) {
+            return y <= zmaxHeight ? 1 : 0;
+        }
+        if (y < start) {
+            return 5;
+        }
+        if (y >= 256) {
+            // Above the world is always empty
+            return 0;
+        }
+        int index = getIndex(x, y, z);
+        if (label[index] == 0 && isSolid(index, x, y, z)) {
+            label[index] = id;
+            cells[cellCount++] = index;
+        }
+        return 0;
+    }
+
+    private boolean isSolid(int index, int x, int y, int z) {
+        if (status[index] == UNKNOWN) {
+            driver.current(x, y, z);
+            status[index] = LostCityTerrainFeature.isEmpty(driver.getBlock()) ? EMPTY : SOLID;
+        }
+        return status[index] != EMPTY;
+    }
+
+    // Order the blobs on their lowest block. Blobs at the same height keep the order in which they were found
+    private void sortBlobs() {
+        int[] counts = heightCounts;
+        Arrays.fill(counts, 0);
+        for (int blob = 0 ; blob < blobCount ; blob++) {
+            counts[blobLowestY[blob] + 1]++;
+        }
+        for (int y = 1 ; y < counts.length ; y++) {
+            counts[y] += counts[y - 1];
+        }
+        for (int blob = 0 ; blob < blobCount ; blob++) {
+            sorted[counts[blobLowestY[blob]]++] = blob;
+        }
+    }
+
+    public int getBlobCount() {
+        return blobCount;
+    }
+
+    // Blobs that were started from a block that is air or liquid (but not the air or liquid of the chunk) have no blocks
+    public int getEmptyBlobs() {
+        return emptyBlobs;
+    }
+
+    // The i'th blob when ordered from low to high
+    public int getSortedBlob(int i) {
+        return sorted[i];
+    }
+
+    public int getSize(int blob) {
+        return blobEnd[blob] - blobStart[blob];
+    }
+
+    public int getConnections(int blob) {
+        return blobConnections[blob];
+    }
+
+    public int getFirstCell(int blob) {
+        return blobStart[blob];
+    }
+
+    public int getLastCell(int blob) {
+        return blobEnd[blob];
+    }
+
+    public int getCell(int i) {
+        return cells[i];
+    }
+
+    public void markMoving(int blob) {
+        for (int i = blobStart[blob] ; i < blobEnd[blob] ; i++) {
+            status[cells[i]] = MOVING;
+        }
+    }
+
+    public boolean isMoving(int index) {
+        return status[index] == MOVING;
+    }
+
+    public boolean isMoving(int x, int y, int z) {
+        return y >= start && y < 256 && status[getIndex(x, y, z)] == MOVING;
+    }
+
+    // All indices (from low to high y) that can be a block of a blob
+    public int getIndexCount() {
+        return (256 - start) << 8;
+    }
+
+    public int getIndex(int x, int y, int z) {
+        return ((y - start) << 8) | (x << 4) | z;
+    }
+
+    public int getX(int index) {
+        return (index >> 4) & 15;
+    }
+
+    public int getY(int index) {
+        return (index >> 8) + start;
+    }
+
+    public int getZ(int index) {
+        return index & 15;
+    }
+}
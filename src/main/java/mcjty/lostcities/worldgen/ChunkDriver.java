@@ -5,10 +5,17 @@ import net.minecraft.state.properties.StairsShape;
 import net.minecraft.util.Direction;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.IBlockReader;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkSection;
 import net.minecraft.world.chunk.ChunkStatus;
 import net.minecraft.world.chunk.IChunk;
+import net.minecraft.world.gen.Heightmap;
 import net.minecraft.world.gen.WorldGenRegion;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Objects;
 import java.util.function.Predicate;
 
@@ -18,6 +25,28 @@ public class ChunkDriver {
     private IChunk primer;
     private final BlockPos.Mutable current = new BlockPos.Mutable();
     private final BlockPos.Mutable pos = new BlockPos.Mutable();
+    private final BlockPos.Mutable facing = new BlockPos.Mutable();
+
+    // Blocks placed with block(), add(), setBlockLayer() or setBlockRangeWithShapes() (as y << 8 | x << 4 | z).
+    // The shapes of these blocks and their neighbours are fixed by updateShapes() in one pass instead of
+    // every time a block is placed
+    private final long[] placedBits = new long[16 * 16 * 256 / 64];
+    private int[] placed = new int[256];
+    private int placedCount = 0;
+
+    // For every direction bit: the offset from a placed block to its neighbour and the direction from
+    // that neighbour back to the placed block (west, east, north, south)
+    private static final int[] DX = { -1, 1, 0, 0 };
+    private static final int[] DZ = { 0, 0, -1, 1 };
+    private static final Direction[] TOWARDS_PLACED = { Direction.EAST, Direction.WEST, Direction.SOUTH, Direction.NORTH };
+
+    private static final ThreadLocal<ShapeScratch> shapeScratch = ThreadLocal.withInitial(ShapeScratch::new);
+
+    // Work arrays for updateShapes(). Neighbours can be one block outside the chunk so this covers 18x18 columns
+    private static class ShapeScratch {
+        private final byte[] directions = new byte[18 * 18 * 256];
+        private int[] neighbours = new int[256];
+    }
 
     public void setPrimer(WorldGenRegion region, IChunk primer) {
         this.region = region;
@@ -77,22 +106,70 @@ public class ChunkDriver {
         return current.getZ();
     }
 
+    /**
+     * Set all blocks from y (inclusive) to y2 (exclusive) in a column. This writes straight into
+     * the chunk sections and updates the heightmaps once for the whole column
+     */
     public void setBlockRange(int x, int y, int z, int y2, BlockState state) {
-        pos.set(x, y, z);
-        while (y < y2) {
-            if (primer.getBlockState(pos) != state) {
-                primer.setBlockState(pos, state, false);
+        setBlockRange(x, y, z, y2, state, null);
+    }
+
+    /**
+     * Same as above but only blocks for which 'test' is true are replaced
+     */
+    public void setBlockRange(int x, int y, int z, int y2, BlockState state, @Nullable Predicate<BlockState> test) {
+        y = Math.max(y, 0);
+        y2 = Math.min(y2, 256);
+        if (state.getLightEmission() > 0) {
+            // The chunk has to know about light sources. Leave that to the chunk
+            setBlockRangeSlow(x, y, z, y2, state, test);
+            return;
+        }
+        boolean isAir = state == Blocks.AIR.defaultBlockState();
+        ChunkSection[] sections = primer.getSections();
+        int lowest = -1;
+        int highest = -1;
+        for ( ; y < y2 ; y++) {
+            ChunkSection section = sections[y >> 4];
+            if (section == Chunk.EMPTY_SECTION) {
+                if (isAir) {
+                    // Already air. Skip the rest of this section
+                    y |= 15;
+                    continue;
+                }
+                section = new ChunkSection(y & ~15);
+                sections[y >> 4] = section;
             }
-            y++;
-            pos.setY(y);
+            BlockState st = section.getBlockState(x, y & 15, z);
+            if (st != state && (test == null || test.test(st))) {
+                section.setBlockState(x, y & 15, z, state, false);
+                if (lowest == -1) {
+                    lowest = y;
+                }
+                highest = y;
+            }
+        }
+        if (highest != -1) {
+            updateHeightmaps(x, z, lowest, highest, state);
         }
     }
 
-    public void setBlockRange(int x, int y, int z, int y2, BlockState state, Predicate<BlockState> test) {
+    /**
+     * Same as setBlockRange() but like block() the blocks are also recorded so that updateShapes()
+     * fixes their shapes and the shapes of their neighbours
+     */
+    public void setBlockRangeWithShapes(int x, int y, int z, int y2, BlockState state) {
+        setBlockRange(x, y, z, y2, state, null);
+        for (int yy = Math.max(y, 0) ; yy < Math.min(y2, 256) ; yy++) {
+            record(x, yy, z);
+        }
+    }
+
+    private void setBlockRangeSlow(int x, int y, int z, int y2, BlockState state, @Nullable Predicate<BlockState> test) {
         pos.set(x, y, z);
         while (y < y2) {
             BlockState st = primer.getBlockState(pos);
-            if (st != state && test.test(st)) {
+            if (st != state && (test == null || test.test(st))) {
                 primer.setBlockState(pos, state, false);
             }
             y++;
@@ -100,48 +177,129 @@ public class ChunkDriver {
         }
     }
 
-    public void setBlockRangeSafe(int x, int y, int z, int y2, BlockState state) {
-        pos.set(x, y, z);
-        while (y < y2) {
-            if (primer.getBlockState(pos) != state) {
-                primer.setBlockState(pos, state, false);
+    /**
+     * Set a horizontal layer of blocks. 'states' has 256 entries indexed by (x << 4) | z. Like
+     * setBlockRange() this writes straight into the chunk section. Like block() the blocks are
+     * recorded for updateShapes()
+     */
+    public void setBlockLayer(int y, BlockState[] states) {
+        if (y < 0 || y >= 256) {
+            return;
+        }
+        ChunkSection[] sections = primer.getSections();
+        for (int x = 0 ; x < 16 ; x++) {
+            for (int z = 0 ; z < 16 ; z++) {
+                BlockState state = states[(x << 4) | z];
+                record(x, y, z);
+                if (state.getLightEmission() > 0) {
+                    setBlockRangeSlow(x, y, z, y + 1, state, null);
+                    continue;
+                }
+                ChunkSection section = sections[y >> 4];
+                if (section == Chunk.EMPTY_SECTION) {
+                    if (state == Blocks.AIR.defaultBlockState()) {
+                        continue;
+                    }
+                    section = new ChunkSection(y & ~15);
+                    sections[y >> 4] = section;
+                }
+                if (section.getBlockState(x, y & 15, z) != state) {
+                    section.setBlockState(x, y & 15, z, state, false);
+                    updateHeightmaps(x, z, y, y, state);
+                }
             }
-            y++;
-            pos.setY(y);
         }
     }
 
-    public void setBlockRangeSafe(int x, int y, int z, int y2, BlockState state, Predicate<BlockState> test) {
-        pos.set(x, y, z);
-        while (y < y2) {
-            BlockState st = primer.getBlockState(pos);
-            if (st != state && test.test(st)) {
-                primer.setBlockState(pos, state, false);
+    /**
+     * Fix the heightmaps of a column after blocks between lowest and highest (inclusive) were
+     * changed directly in the section. 'state' is the block that was placed at 'highest'
+     */
+    private void updateHeightmaps(int x, int z, int lowest, int highest, BlockState state) {
+        for (Map.Entry<Heightmap.Type, Heightmap> entry : primer.getHeightmaps()) {
+            Heightmap heightmap = entry.getValue();
+            // If the top of this column was changed the heightmap may have to look down from there
+            int top = heightmap.getFirstAvailable(x, z) - 1;
+            if (top >= lowest && top <= highest) {
+                heightmap.update(x, top, z, primer.getBlockState(pos.set(x, top, z)));
             }
-            y++;
-            pos.setY(y);
+            // The new blocks can also make the column higher
+            heightmap.update(x, highest, z, state);
         }
     }
 
-    private BlockState updateAdjacent(BlockState state, Direction direction, BlockPos pos, IChunk thisChunk) {
-        BlockState adjacent = region.getBlockState(pos);
-        if (adjacent.getBlock() instanceof LadderBlock) {
-            return adjacent;
+    public void setBlockRangeSafe(int x, int y, int z, int y2, BlockState state) {
+        setBlockRange(x, y, z, y2, state, null);
+    }
+
+    public void setBlockRangeSafe(int x, int y, int z, int y2, BlockState state, Predicate<BlockState> test) {
+        setBlockRange(x, y, z, y2, state, test);
+    }
+
+    /**
+     * Replace a whole 16x16x16 section with liquid (up to and including the water level) and air
+     * above that. The section is rebuilt as a whole instead of setting every block. The light engine
+     * is not involved: this is meant for worldgen before the chunk is lit (the light stage will see
+     * the new section). Only blocks that emit light (like lava) are set through the chunk so that they
+     * are registered as light sources. Block entities in the section are removed and the heightmaps
+     * are fixed once per column
+     */
+    public void clearSection(int sectionY, BlockState air, BlockState liquid, int waterLevel) {
+        ChunkSection[] sections = primer.getSections();
+        int minY = sectionY << 4;
+        int maxY = minY + 15;
+        int liquidTop = Math.min(maxY, waterLevel);
+
+        if (liquidTop < minY && air == Blocks.AIR.defaultBlockState()) {
+            sections[sectionY] = Chunk.EMPTY_SECTION;
+        } else {
+            ChunkSection section = new ChunkSection(minY);
+            for (int y = minY ; y <= maxY ; y++) {
+                BlockState state = y <= liquidTop ? liquid : air;
+                // Light sources (like lava) are set later through the chunk so that it knows about them
+                if (state != Blocks.AIR.defaultBlockState() && state.getLightEmission() == 0) {
+                    for (int x = 0 ; x < 16 ; x++) {
+                        for (int z = 0 ; z < 16 ; z++) {
+                            section.setBlockState(x, y & 15, z, state, false);
+                        }
+                    }
+                }
+            }
+            sections[sectionY] = section;
+            for (int y = minY ; y <= maxY ; y++) {
+                BlockState state = y <= liquidTop ? liquid : air;
+                if (state.getLightEmission() > 0) {
+                    for (int x = 0 ; x < 16 ; x++) {
+                        for (int z = 0 ; z < 16 ; z++) {
+                            primer.setBlockState(pos.set(x, y, z), state, false);
+                        }
+                    }
+                }
+            }
         }
-        BlockState newAdjacent = null;
-        try {
-            newAdjacent = adjacent.updateShape(direction, state, region, pos, pos.relative(direction));
-        } catch (Exception e) {
-            // We got an exception. For example for beehives there can potentially be a problem so in this case we just ignore it
-            return adjacent;
+
+        for (BlockPos p : new ArrayList<>(primer.getBlockEntitiesPos())) {
+            if (p.getY() >= minY && p.getY() <= maxY) {
+                primer.removeBlockEntity(p);
+            }
         }
-        if (newAdjacent != adjacent) {
-            IChunk chunk = region.getChunk(pos);
-            if (chunk == thisChunk || chunk.getStatus().isOrAfter(ChunkStatus.FULL)) {
-                region.setBlock(pos, newAdjacent, 0);
+
+        for (Map.Entry<Heightmap.Type, Heightmap> entry : primer.getHeightmaps()) {
+            Heightmap heightmap = entry.getValue();
+            for (int x = 0 ; x < 16 ; x++) {
+                for (int z = 0 ; z < 16 ; z++) {
+                    // If the top of this column was in the section the heightmap has to look down from there
+                    int top = heightmap.getFirstAvailable(x, z) - 1;
+                    if (top >= minY && top <= maxY) {
+                        heightmap.update(x, top, z, primer.getBlockState(pos.set(x, top, z)));
+                    }
+                    // Liquid can also make the column higher
+                    if (liquidTop >= minY) {
+                        heightmap.update(x, liquidTop, z, liquid);
+                    }
+                }
             }
         }
-        return newAdjacent;
     }
 
     public static boolean isBlockStairs(BlockState state) {
@@ -192,22 +350,118 @@ public class ChunkDriver {
         return !Block.isExceptionForConnection(state.getBlock());
     }
 
-    private BlockState correct(BlockState state) {
-        int cx = current.getX() + (primer.getPos().x << 4);
-        int cy = current.getY();
-        int cz = current.getZ() + (primer.getPos().z << 4);
+    private void record() {
+        record(current.getX(), current.getY(), current.getZ());
+    }
+
+    private void record(int x, int y, int z) {
+        if (y < 0 || y >= 256) {
+            return;
+        }
+        int index = (y << 8) | ((x & 15) << 4) | (z & 15);
+        long bit = 1L << (index & 63);
+        if ((placedBits[index >> 6] & bit) == 0) {
+            placedBits[index >> 6] |= bit;
+            if (placedCount == placed.length) {
+                placed = Arrays.copyOf(placed, placedCount * 2);
+            }
+            placed[placedCount++] = index;
+        }
+    }
+
+    /**
+     * Fix the shapes of everything that was placed with block() or add() since the last call. First
+     * every neighbour of a placed block is updated (once, for all its placed sides together) and then
+     * the placed panes, fences and stairs are connected to their final neighbours
+     */
+    public void updateShapes() {
+        if (placedCount == 0) {
+            return;
+        }
+        ShapeScratch scratch = shapeScratch.get();
+        byte[] directions = scratch.directions;
+        int[] neighbours = scratch.neighbours;
+        int neighbourCount = 0;
+        for (int i = 0 ; i < placedCount ; i++) {
+            int index = placed[i];
+            int y = index >> 8;
+            int x = (index >> 4) & 15;
+            int z = index & 15;
+            for (int d = 0 ; d < 4 ; d++) {
+                int n = (y * 18 + x + 1 + DX[d]) * 18 + z + 1 + DZ[d];
+                if (directions[n] == 0) {
+                    if (neighbourCount == neighbours.length) {
+                        neighbours = Arrays.copyOf(neighbours, neighbourCount * 2);
+                        scratch.neighbours = neighbours;
+                    }
+                    neighbours[neighbourCount++] = n;
+                }
+                directions[n] |= 1 << d;
+            }
+        }
+
+        int baseX = primer.getPos().x << 4;
+        int baseZ = primer.getPos().z << 4;
+        for (int i = 0 ; i < neighbourCount ; i++) {
+            int n = neighbours[i];
+            int mask = directions[n];
+            directions[n] = 0;
+            int z = n % 18 - 1;
+            int x = (n / 18) % 18 - 1;
+            int y = n / (18 * 18);
+            updateNeighbour(baseX, baseZ, x, y, z, mask);
+        }
+
+        for (int i = 0 ; i < placedCount ; i++) {
+            int index = placed[i];
+            placedBits[index >> 6] = 0;
+            int y = index >> 8;
+            int x = (index >> 4) & 15;
+            int z = index & 15;
+            BlockState state = primer.getBlockState(pos.set(x, y, z));
+            BlockState corrected = correct(state, baseX + x, y, baseZ + z);
+            if (corrected != state) {
+                primer.setBlockState(pos.set(x, y, z), corrected, false);
+            }
+        }
+        placedCount = 0;
+    }
 
-        IChunk thisChunk = region.getChunk(cx >> 4, cz >> 4);
-        BlockState westState = updateAdjacent(state, Direction.EAST, pos.set(cx - 1, cy, cz), thisChunk);
-        BlockState eastState = updateAdjacent(state, Direction.WEST, pos.set(cx + 1, cy, cz), thisChunk);
-        BlockState northState = updateAdjacent(state, Direction.SOUTH, pos.set(cx, cy, cz - 1), thisChunk);
-        BlockState southState = updateAdjacent(state, Direction.NORTH, pos.set(cx, cy, cz + 1), thisChunk);
+    // Update the shape of a neighbour (in chunk local coordinates, can be one block outside the chunk) for
+    // all the placed blocks next to it. 'mask' has the direction bits of those blocks
+    private void updateNeighbour(int baseX, int baseZ, int x, int y, int z, int mask) {
+        pos.set(baseX + x, y, baseZ + z);
+        BlockState adjacent = region.getBlockState(pos);
+        if (adjacent.getBlock() instanceof LadderBlock) {
+            return;
+        }
+        BlockState newAdjacent = adjacent;
+        for (int d = 0 ; d < 4 ; d++) {
+            if ((mask & (1 << d)) != 0) {
+                int px = x - DX[d];
+                int pz = z - DZ[d];
+                BlockState state = primer.getBlockState(facing.set(px, y, pz));
+                try {
+                    newAdjacent = newAdjacent.updateShape(TOWARDS_PLACED[d], state, region, pos, facing.set(baseX + px, y, baseZ + pz));
+                } catch (Exception e) {
+                    // We got an exception. For example for beehives there can potentially be a problem so in this case we just ignore it
+                }
+            }
+        }
+        if (newAdjacent != adjacent) {
+            boolean inside = x >= 0 && x < 16 && z >= 0 && z < 16;
+            if (inside || region.getChunk(pos).getStatus().isOrAfter(ChunkStatus.FULL)) {
+                region.setBlock(pos, newAdjacent, 0);
+            }
+        }
+    }
 
+    private BlockState correct(BlockState state, int cx, int cy, int cz) {
         if (state.getBlock() instanceof FourWayBlock) {
-            state = state.setValue(FourWayBlock.WEST, canAttach(westState));
-            state = state.setValue(FourWayBlock.EAST, canAttach(eastState));
-            state = state.setValue(FourWayBlock.NORTH, canAttach(northState));
-            state = state.setValue(FourWayBlock.SOUTH, canAttach(southState));
+            state = state.setValue(FourWayBlock.WEST, canAttach(region.getBlockState(pos.set(cx - 1, cy, cz))));
+            state = state.setValue(FourWayBlock.EAST, canAttach(region.getBlockState(pos.set(cx + 1, cy, cz))));
+            state = state.setValue(FourWayBlock.NORTH, canAttach(region.getBlockState(pos.set(cx, cy, cz - 1))));
+            state = state.setValue(FourWayBlock.SOUTH, canAttach(region.getBlockState(pos.set(cx, cy, cz + 1))));
         } else if (state.getBlock() instanceof StairsBlock) {
             state = state.setValue(StairsBlock.SHAPE, getShapeProperty(state, region, pos.set(cx, cy, cz)));
         }
@@ -219,14 +473,19 @@ public class ChunkDriver {
         return this;
     }
 
+    /**
+     * Set a block. Its shape and the shape of its neighbours are fixed later by updateShapes()
+     */
     public ChunkDriver block(BlockState c) {
-        primer.setBlockState(current, correct(c), false);
+        primer.setBlockState(current, c, false);
+        record();
         return this;
     }
 
     public ChunkDriver add(BlockState state) {
 //        validate();
-        primer.setBlockState(current, correct(state), false);
+        primer.setBlockState(current, state, false);
+        record();
         incY();
         return this;
     }
@@ -17,14 +17,13 @@ public class ChunkFixer {
 
     private static void generateTrees(Random random, int chunkX, int chunkZ, IWorld world, IDimensionInfo provider) {
         BuildingInfo info = BuildingInfo.getBuildingInfo(chunkX, chunkZ, provider);
-        for (BlockPos pos : info.getSaplingTodo()) {
+        for (BlockPos pos : info.takeSaplingTodo()) {
             BlockState state = world.getBlockState(pos);
             if (state.getBlock() instanceof SaplingBlock) {
                 // @todo 1.15 how to do this?
 //                ((SaplingBlock) state.getBlock()).grow((ServerWorld)world, random, pos, state);
             }
         }
-        info.clearSaplingTodo();
     }
 
     private static void generateVines(Random random, int chunkX, int chunkZ, IWorld world, IDimensionInfo provider) {
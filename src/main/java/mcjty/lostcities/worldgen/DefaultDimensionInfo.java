@@ -25,6 +25,7 @@ public class DefaultDimensionInfo implements IDimensionInfo {
 
     private final Registry<Biome> biomeRegistry;
     private final LostCityTerrainFeature feature;
+    private final GenerationCaches caches = new GenerationCaches(this);
 
     public DefaultDimensionInfo(ISeedReader world, LostCityProfile profile) {
         this.world = world;
@@ -86,6 +87,11 @@ public class DefaultDimensionInfo implements IDimensionInfo {
         return feature.getHeightmap(chunkX, chunkZ, getWorld());
     }
 
+    @Override
+    public GenerationCaches getCaches() {
+        return caches;
+    }
+
 @Override
     public Biome getBiome(BlockPos pos) {
         AbstractChunkProvider chunkProvider = getWorld().getChunkSource();
@@ -0,0 +1,57 @@
+package mcjty.lostcities.worldgen;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * The caches that are used while generating a dimension (or a preview of one). Every IDimensionInfo
+ * owns one of these. When the dimension info is no longer used all its caches go with it and two
+ * dimension infos (for example two previews or a preview and a real world) never see each other's data.
+ * A cache is identified by a Key which also knows how to make a new (empty) cache
+ */
+public class GenerationCaches {
+
+    private final IDimensionInfo provider;
+    private final Map<Key<?>, Object> caches = new ConcurrentHashMap<>();
+
+    public static final class Key<T> {
+        private final String name;
+        private final Function<IDimensionInfo, T> factory;
+
+        public Key(String name, Function<IDimensionInfo, T> factory) {
+            this.name = name;
+            this.factory = factory;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    public GenerationCaches(IDimensionInfo provider) {
+        this.provider = provider;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T get(Key<T> key) {
+        Object cache = caches.get(key);
+        if (cache == null) {
+            cache = caches.computeIfAbsent(key, k -> k.factory.apply(provider));
+        }
+        return (T) cache;
+    }
+
+    /**
+     * Drop all caches. They are made again (empty) when they are needed
+     */
+    public void clear() {
+        caches.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "caches=" + caches.keySet();
+    }
+}
@@ -0,0 +1,47 @@
+package mcjty.lostcities.worldgen;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.world.chunk.IChunk;
+import net.minecraft.world.gen.WorldGenRegion;
+
+import java.util.Random;
+
+/**
+ * All state that changes while a single chunk is being generated. There is only one LostCityTerrainFeature
+ * per dimension and several worldgen threads can be generating chunks at the same time. So every call
+ * to LostCityTerrainFeature.generate() gets its own context.
+ */
+public class GenerationContext {
+
+    public final ChunkDriver driver = new ChunkDriver();
+    public final Random rand;
+
+    public BlockState street;
+    public BlockState streetBase;
+    public BlockState street2;
+    public int streetBorder;
+
+    public double[] rubbleBuffer = new double[256];
+    public double[] leavesBuffer = new double[256];
+    public double[] ruinBuffer = new double[256];
+    public final BlockState[] layerBuffer = new BlockState[256];
+
+    // Seed of fastrand128(). The random entries of compiled parts, leaves and dirt are picked with this
+    private int fastSeed;
+
+    public GenerationContext(WorldGenRegion region, IChunk chunk, long seed) {
+        driver.setPrimer(region, chunk);
+        int chunkX = chunk.getPos().x;
+        int chunkZ = chunk.getPos().z;
+        rand = new Random(seed + chunkX * 341873128712L + chunkZ * 132897987541L);
+        fastSeed = (int) (seed + chunkX * 257017164707L + chunkZ * 101754694003L);
+    }
+
+    /**
+     * A fast (and not very random) number between 0 and 127
+     */
+    public int fastrand128() {
+        fastSeed = (214013 * fastSeed + 2531011);
+        return (fastSeed >> 16) & 0x7F;
+    }
+}
@@ -31,6 +31,11 @@ public interface IDimensionInfo {
 
     ChunkHeightmap getHeightmap(int chunkX, int chunkZ);
 
+    /**
+     * The caches of everything that is calculated for this dimension. They are dropped together with this
+     */
+    GenerationCaches getCaches();
+
 //    Biome[] getBiomes(int chunkX, int chunkZ);
 
     Biome getBiome(BlockPos pos);
@@ -21,9 +21,10 @@ import net.minecraft.world.gen.placement.Placement;
 import net.minecraft.world.gen.placement.TopSolidRangeConfig;
 
 import javax.annotation.Nullable;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class LostCityFeature extends Feature<NoFeatureConfig> {
 
@@ -32,11 +33,13 @@ public class LostCityFeature extends Feature<NoFeatureConfig> {
      * and will have the correct dimension info and for the clients it doesn't matter.
      * However, to make sure that on a single player world this cache is cleared when the player
      * exits the world and creates a new one we keep a static flag which is incremented whenever
-     * the player exits the world. That is then used to help clear this cache
+     * the player exits the world. That is then used to help clear this cache.
+     * Chunks are generated on several threads so the map is concurrent and every dimension gets
+     * exactly one dimension info (which owns all the generation caches of that dimension)
      */
-    private final Map<RegistryKey<World>, IDimensionInfo> dimensionInfo = new HashMap<>();
-    public static int globalDimensionInfoDirtyCounter = 0;
-    private int dimensionInfoDirtyCounter = -1;
+    private final Map<RegistryKey<World>, IDimensionInfo> dimensionInfo = new ConcurrentHashMap<>();
+    public static final AtomicInteger globalDimensionInfoDirtyCounter = new AtomicInteger();
+    private volatile int dimensionInfoDirtyCounter = -1;
 
     public static ConfiguredFeature<?, ?> LOSTCITY_CONFIGURED_FEATURE;
 
@@ -73,22 +76,32 @@ public class LostCityFeature extends Feature<NoFeatureConfig> {
         return false;
     }
 
+    /**
+     * Forget the dimension info (and with that all generation caches) of a dimension
+     */
+    public void removeDimensionInfo(RegistryKey<World> type) {
+        dimensionInfo.remove(type);
+    }
+
     @Nullable
     public IDimensionInfo getDimensionInfo(ISeedReader world) {
-        if (globalDimensionInfoDirtyCounter != dimensionInfoDirtyCounter) {
-            // Force clear of cache
-            dimensionInfo.clear();
-            dimensionInfoDirtyCounter = globalDimensionInfoDirtyCounter;
+        int globalCounter = globalDimensionInfoDirtyCounter.get();
+        if (globalCounter != dimensionInfoDirtyCounter) {
+            synchronized (this) {
+                if (globalCounter != dimensionInfoDirtyCounter) {
+                    // Force clear of cache
+                    dimensionInfo.clear();
+                    dimensionInfoDirtyCounter = globalCounter;
+                }
+            }
         }
         RegistryKey<World> type = world.getLevel().dimension();
         String profileName = Config.getProfileForDimension(type);
         if (profileName != null) {
-            if (!dimensionInfo.containsKey(type)) {
+            return dimensionInfo.computeIfAbsent(type, t -> {
                 LostCityProfile profile = LostCityConfiguration.standardProfiles.get(profileName);
-                IDimensionInfo diminfo = new DefaultDimensionInfo(world, profile);
-                dimensionInfo.put(type, diminfo);
-            }
-            return dimensionInfo.get(type);
+                return new DefaultDimensionInfo(world, profile);
+            });
         }
         return null;
     }
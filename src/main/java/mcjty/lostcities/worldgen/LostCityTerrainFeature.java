@@ -3,7 +3,9 @@ package mcjty.lostcities.worldgen;
 import mcjty.lostcities.api.RailChunkType;
 import mcjty.lostcities.config.LostCityConfiguration;
 import mcjty.lostcities.config.LostCityProfile;
+import mcjty.lostcities.setup.Config;
 import mcjty.lostcities.setup.ModSetup;
+import mcjty.lostcities.varia.ChunkCache;
 import mcjty.lostcities.varia.ChunkCoord;
 import mcjty.lostcities.varia.GeometryTools;
 import mcjty.lostcities.varia.NoiseGeneratorPerlin;
@@ -11,7 +13,6 @@ import mcjty.lostcities.worldgen.lost.*;
 import mcjty.lostcities.worldgen.lost.cityassets.*;
 import net.minecraft.block.*;
 import net.minecraft.block.material.Material;
-import net.minecraft.state.EnumProperty;
 import net.minecraft.state.properties.DoorHingeSide;
 import net.minecraft.state.properties.DoubleBlockHalf;
 import net.minecraft.state.properties.RailShape;
@@ -43,7 +44,6 @@ import java.util.function.Predicate;
 
 public class LostCityTerrainFeature {
 
-    private static int gSeed = 123456789;
     private final int mainGroundLevel;
     private boolean statesSetup = false;
     public static BlockState air;
@@ -65,45 +65,34 @@ public class LostCityTerrainFeature {
     public BlockState liquid;
     public BlockState base;
 
-    private static Set<BlockState> rotatableStates = null;
-    private static Set<BlockState> railStates = null;
-    private static Set<BlockState> glassStates = null;
-    private static Set<BlockState> statesNeedingTodo = null;
-    private static Set<BlockState> statesNeedingLightingUpdate = null;
-
-    private BlockState street;
-    private BlockState streetBase;
-    private BlockState street2;
-    private int streetBorder;
+    private static volatile Set<BlockState> rotatableStates = null;
+    private static volatile Set<BlockState> railStates = null;
+    private static volatile Set<BlockState> glassStates = null;
+    private static volatile Set<BlockState> statesNeedingTodo = null;
+    private static volatile Set<BlockState> statesNeedingLightingUpdate = null;
 
     private final NoiseGeneratorPerlin rubbleNoise;
     private final NoiseGeneratorPerlin leavesNoise;
     private final NoiseGeneratorPerlin ruinNoise;
 
-    private static BlockState[] randomLeafs = null;
-    private static BlockState[] randomDirt = null;
+    private static volatile BlockState[] randomLeafs = null;
+    private static volatile BlockState[] randomDirt = null;
 
     static final Material[] plantMaterials = new Material[]{Material.PLANT, Material.WATER_PLANT, Material.REPLACEABLE_WATER_PLANT, Material.REPLACEABLE_PLANT, Material.REPLACEABLE_FIREPROOF_PLANT, Material.BAMBOO_SAPLING, Material.BAMBOO, Material.WOOD, Material.LEAVES};
 
-    private final ChunkDriver driver;
-
     private final IDimensionInfo provider;
     private final LostCityProfile profile;
-    private final Random rand;
 
-    // Helper variables for correctTerrainShape
-    private final Integer[] mm00 = new Integer[2];
-    private final Integer[] mm10 = new Integer[2];
-    private final Integer[] mm01 = new Integer[2];
-    private final Integer[] mm11 = new Integer[2];
+    // The context of the chunk that is currently being generated on this thread
+    private final ThreadLocal<GenerationContext> context = new ThreadLocal<>();
+    // Scratch space to find the blobs after an explosion. Reused for every chunk generated by a thread
+    private static final ThreadLocal<BlobFinder> blobFinder = ThreadLocal.withInitial(BlobFinder::new);
 
-    private final Map<ChunkCoord, ChunkHeightmap> cachedHeightmaps = new HashMap<>();
+    private final ChunkCache<ChunkHeightmap> cachedHeightmaps = new ChunkCache<>(Config.HEIGHTMAP_CACHE_SIZE.get());
 
     public LostCityTerrainFeature(IDimensionInfo provider, LostCityProfile profile, Random rand) {
         this.provider = provider;
         this.profile = profile;
-        this.rand = rand;
-        driver = new ChunkDriver();
         this.mainGroundLevel = profile.GROUNDLEVEL;
         int waterLevel = provider.getWorld() == null ? 65 : provider.getWorld().getSeaLevel();// profile.GROUNDLEVEL - profile.WATERLEVEL_OFFSET;
         this.rubbleNoise = new NoiseGeneratorPerlin(rand, 4);
@@ -111,118 +100,125 @@ public class LostCityTerrainFeature {
         this.ruinNoise = new NoiseGeneratorPerlin(rand, 4);
     }
 
-    public static BlockState getRandomLeaf() {
+    public static BlockState getRandomLeaf(GenerationContext ctx) {
         if (randomLeafs == null) {
-            randomLeafs = new BlockState[128];
+            BlockState[] states = new BlockState[128];
             int i = 0;
             for (; i < 20; i++) {
-                randomLeafs[i] = leaves2;
+                states[i] = leaves2;
             }
             for (; i < 40; i++) {
-                randomLeafs[i] = leaves3;
+                states[i] = leaves3;
             }
-            for (; i < randomLeafs.length; i++) {
-                randomLeafs[i] = leaves;
+            for (; i < states.length; i++) {
+                states[i] = leaves;
             }
+            randomLeafs = states;
         }
-        return randomLeafs[fastrand128()];
+        return randomLeafs[ctx.fastrand128()];
     }
 
-    public static BlockState getRandomDirt() {
+    public static BlockState getRandomDirt(GenerationContext ctx) {
         if (randomDirt == null) {
             BlockState mBricks = Blocks.MOSSY_STONE_BRICKS.defaultBlockState();
             BlockState mCobble = Blocks.MOSSY_COBBLESTONE.defaultBlockState();
 
-            randomDirt = new BlockState[128];
+            BlockState[] states = new BlockState[128];
             int i = 0;
             while (i < 20) {
-                randomDirt[i] = mBricks;
+                states[i] = mBricks;
                 i++;
             }
             while (i < 60) {
-                randomDirt[i] = mCobble;
+                states[i] = mCobble;
                 i++;
             }
-            while (i < randomDirt.length) {
-                randomDirt[i] = mCobble;
+            while (i < states.length) {
+                states[i] = mCobble;
                 i++;
             }
+            randomDirt = states;
         }
-        return randomDirt[fastrand128()];
+        return randomDirt[ctx.fastrand128()];
     }
 
     public static Set<BlockState> getRailStates() {
         if (railStates == null) {
-            railStates = new HashSet<>();
-            addStates(Blocks.RAIL, railStates);
-            addStates(Blocks.POWERED_RAIL, railStates);
+            Set<BlockState> states = new HashSet<>();
+            addStates(Blocks.RAIL, states);
+            addStates(Blocks.POWERED_RAIL, states);
+            railStates = states;
         }
         return railStates;
     }
 
     public static Set<BlockState> getGlassStates() {
         if (glassStates == null) {
-            glassStates = new HashSet<>();
+            Set<BlockState> states = new HashSet<>();
             for (Block block : Tags.Blocks.GLASS.getValues()) {
-                addStates(block, glassStates);
+                addStates(block, states);
             }
             for (Block block : Tags.Blocks.STAINED_GLASS.getValues()) {
-                addStates(block, glassStates);
+                addStates(block, states);
             }
             for (Block block : Tags.Blocks.GLASS.getValues()) {
-                addStates(block, glassStates);
+                addStates(block, states);
             }
             for (Block block : Tags.Blocks.STAINED_GLASS.getValues()) {
-                addStates(block, glassStates);
+                addStates(block, states);
             }
+            glassStates = states;
         }
         return glassStates;
     }
 
     public static Set<BlockState> getStatesNeedingTodo() {
         if (statesNeedingTodo == null) {
-            statesNeedingTodo = new HashSet<>();
+            Set<BlockState> states = new HashSet<>();
             for (Block block : BlockTags.SAPLINGS.getValues()) {
-                addStates(block, statesNeedingTodo);
+                addStates(block, states);
             }
             for (Block block : BlockTags.SMALL_FLOWERS.getValues()) {
-                addStates(block, statesNeedingTodo);
+                addStates(block, states);
             }
+            statesNeedingTodo = states;
         }
         return statesNeedingTodo;
     }
 
     public static Set<BlockState> getStatesNeedingLightingUpdate() {
         if (statesNeedingLightingUpdate == null) {
-            statesNeedingLightingUpdate = new HashSet<>();
+            Set<BlockState> states = new HashSet<>();
             for (String s : LostCityConfiguration.BLOCKS_REQUIRING_LIGHTING_UPDATES) {
                 Block block = ForgeRegistries.BLOCKS.getValue(new ResourceLocation(s));
                 if (block != null) {
-                    addStates(block, statesNeedingLightingUpdate);
+                    addStates(block, states);
                 }
             }
+            statesNeedingLightingUpdate = states;
         }
         return statesNeedingLightingUpdate;
     }
 
     public static Set<BlockState> getRotatableStates() {
         if (rotatableStates == null) {
-            rotatableStates = new HashSet<>();
-            addStates(Blocks.ACACIA_STAIRS, rotatableStates);
-            addStates(Blocks.BIRCH_STAIRS, rotatableStates);
-            addStates(Blocks.BRICK_STAIRS, rotatableStates);
-            addStates(Blocks.QUARTZ_STAIRS, rotatableStates);
-            addStates(Blocks.STONE_BRICK_STAIRS, rotatableStates);
-            addStates(Blocks.DARK_OAK_STAIRS, rotatableStates);
-            addStates(Blocks.JUNGLE_STAIRS, rotatableStates);
-            addStates(Blocks.NETHER_BRICK_STAIRS, rotatableStates);
-            addStates(Blocks.OAK_STAIRS, rotatableStates);
-            addStates(Blocks.PURPUR_STAIRS, rotatableStates);
-            addStates(Blocks.RED_SANDSTONE_STAIRS, rotatableStates);
-            addStates(Blocks.SANDSTONE_STAIRS, rotatableStates);
-            addStates(Blocks.SPRUCE_STAIRS, rotatableStates);
-            addStates(Blocks.STONE_STAIRS, rotatableStates);
-            addStates(Blocks.LADDER, rotatableStates);
+            Set<BlockState> states = new HashSet<>();
+            addStates(Blocks.ACACIA_STAIRS, states);
+            addStates(Blocks.BIRCH_STAIRS, states);
+            addStates(Blocks.BRICK_STAIRS, states);
+            addStates(Blocks.QUARTZ_STAIRS, states);
+            addStates(Blocks.STONE_BRICK_STAIRS, states);
+            addStates(Blocks.DARK_OAK_STAIRS, states);
+            addStates(Blocks.JUNGLE_STAIRS, states);
+            addStates(Blocks.NETHER_BRICK_STAIRS, states);
+            addStates(Blocks.OAK_STAIRS, states);
+            addStates(Blocks.PURPUR_STAIRS, states);
+            addStates(Blocks.RED_SANDSTONE_STAIRS, states);
+            addStates(Blocks.SANDSTONE_STAIRS, states);
+            addStates(Blocks.SPRUCE_STAIRS, states);
+            addStates(Blocks.STONE_STAIRS, states);
+            addStates(Blocks.LADDER, states);
+            rotatableStates = states;
         }
         return rotatableStates;
     }
@@ -263,66 +259,69 @@ public class LostCityTerrainFeature {
         }
     }
 
-    private static int fastrand() {
-        gSeed = (214013 * gSeed + 2531011);
-        return (gSeed >> 16) & 0x7FFF;
-    }
-
-    public static int fastrand128() {
-        gSeed = (214013 * gSeed + 2531011);
-        return (gSeed >> 16) & 0x7F;
-    }
-
     public void generateDummy(WorldGenRegion region, IChunk chunk) {
-
-        WorldGenRegion oldRegion = driver.getRegion();
-        IChunk oldChunk = driver.getPrimer();
-        driver.setPrimer(region, chunk);
-
-        street = Blocks.STONE_BRICKS.defaultBlockState();
-
-        int chunkX = chunk.getPos().x;
-        int chunkZ = chunk.getPos().z;
-        BuildingInfo info = BuildingInfo.getBuildingInfo(chunkX, chunkZ, provider);
-        ChunkHeightmap heightmap = getHeightmap(chunkX, chunkZ, region);
-        Random r = new Random(chunkX * 257017164707L + chunkZ * 101754694003L);
-        r.nextFloat();
-        if (r.nextFloat() < .4) {
-            for (int x = 0 ; x < 16 ; x++) {
-                for (int z = 0 ; z < 16 ; z++) {
-                    int height = r.nextInt(50) + 30;
-                    driver.current(x, 30, z);
-                    while (height > 0) {
-                        if (r.nextFloat() < 0.01) {
-                            driver.add(glowstone);
-                        } else {
-                            driver.add(street);
+        GenerationContext ctx = new GenerationContext(region, chunk, provider.getSeed());
+        GenerationContext oldContext = context.get();
+        context.set(ctx);
+        try {
+            ChunkDriver driver = ctx.driver;
+
+            BlockState street = Blocks.STONE_BRICKS.defaultBlockState();
+            ctx.street = street;
+
+            int chunkX = chunk.getPos().x;
+            int chunkZ = chunk.getPos().z;
+            BuildingInfo info = BuildingInfo.getBuildingInfo(chunkX, chunkZ, provider);
+            ChunkHeightmap heightmap = getHeightmap(chunkX, chunkZ, region);
+            Random r = new Random(chunkX * 257017164707L + chunkZ * 101754694003L);
+            r.nextFloat();
+            if (r.nextFloat() < .4) {
+                for (int x = 0 ; x < 16 ; x++) {
+                    for (int z = 0 ; z < 16 ; z++) {
+                        int height = r.nextInt(50) + 30;
+                        driver.current(x, 30, z);
+                        while (height > 0) {
+                            if (r.nextFloat() < 0.01) {
+                                driver.add(glowstone);
+                            } else {
+                                driver.add(street);
+                            }
+                            height--;
                         }
-                        height--;
                     }
                 }
-            }
-        } else if (r.nextFloat() < .4) {
-            for (int x = 0 ; x < 16 ; x++) {
-                for (int z = 0 ; z < 16 ; z++) {
-                    int height = r.nextInt(50) + 30;
-                    driver.current(x, 30, z);
-                    while (height > 0) {
-                        if (r.nextFloat() < 0.01) {
-                            driver.add(glowstone);
-                        } else {
-                            driver.add(air);
+            } else if (r.nextFloat() < .4) {
+                for (int x = 0 ; x < 16 ; x++) {
+                    for (int z = 0 ; z < 16 ; z++) {
+                        int height = r.nextInt(50) + 30;
+                        driver.current(x, 30, z);
+                        while (height > 0) {
+                            if (r.nextFloat() < 0.01) {
+                                driver.add(glowstone);
+                            } else {
+                                driver.add(air);
+                            }
+                            height--;
                         }
-                        height--;
                     }
                 }
             }
+            driver.updateShapes();
+        } finally {
+            restoreContext(oldContext);
         }
+    }
 
-        driver.setPrimer(oldRegion, oldChunk);
+    private void restoreContext(GenerationContext oldContext) {
+        if (oldContext == null) {
+            context.remove();
+        } else {
+            context.set(oldContext);
+        }
     }
 
     private boolean isVoid(int x, int z) {
+        ChunkDriver driver = context.get().driver;
         driver.current(x, 255, z);
         while (driver.getBlock() == air && driver.getY() > 0) {
             driver.decY();
@@ -331,10 +330,17 @@ public class LostCityTerrainFeature {
     }
 
     public void generate(WorldGenRegion region, IChunk chunk) {
-        WorldGenRegion oldRegion = driver.getRegion();
-        IChunk oldChunk = driver.getPrimer();
-        driver.setPrimer(region, chunk);
+        GenerationContext ctx = new GenerationContext(region, chunk, provider.getSeed());
+        GenerationContext oldContext = context.get();
+        context.set(ctx);
+        try {
+            generate(ctx, chunk);
+        } finally {
+            restoreContext(oldContext);
+        }
+    }
 
+    private void generate(GenerationContext ctx, IChunk chunk) {
         int chunkX = chunk.getPos().x;
         int chunkZ = chunk.getPos().z;
         BuildingInfo info = BuildingInfo.getBuildingInfo(chunkX, chunkZ, provider);
@@ -342,10 +348,10 @@ public class LostCityTerrainFeature {
         // @todo this setup is not very clean
         CityStyle cityStyle = info.getCityStyle();
 
-        street = info.getCompiledPalette().get(cityStyle.getStreetBlock());
-        streetBase = info.getCompiledPalette().get(cityStyle.getStreetBaseBlock());
-        street2 = info.getCompiledPalette().get(cityStyle.getStreetVariantBlock());
-        streetBorder = (16 - cityStyle.getStreetWidth()) / 2;
+        ctx.street = info.getCompiledPalette().get(cityStyle.getStreetBlock());
+        ctx.streetBase = info.getCompiledPalette().get(cityStyle.getStreetBaseBlock());
+        ctx.street2 = info.getCompiledPalette().get(cityStyle.getStreetVariantBlock());
+        ctx.streetBorder = (16 - cityStyle.getStreetWidth()) / 2;
 
         boolean doCity = info.isCity || (info.outsideChunk && info.hasBuilding);
 
@@ -376,20 +382,22 @@ public class LostCityTerrainFeature {
 
         fixTorches(info);
 
+        // Fix the shapes of everything that was placed so far. Damage looks at the final blocks
+        ctx.driver.updateShapes();
+
         // We make a new random here because the primer for a normal chunk may have
         // been cached and we want to be able to do the same when returning from a cached
         // primer vs generating it here
-        rand.setSeed(chunkX * 257017164707L + chunkZ * 101754694003L);
+        ctx.rand.setSeed(chunkX * 257017164707L + chunkZ * 101754694003L);
 
         if (info.getDamageArea().hasExplosions()) {
             breakBlocksForDamage(chunkX, chunkZ, info);
-            fixAfterExplosionNew(info, rand);
+            fixAfterExplosionNew(info, ctx.rand);
         }
-        generateDebris(rand, info);
+        generateDebris(ctx.rand, info);
+        ctx.driver.updateShapes();
 
         ChunkFixer.fix(provider, chunkX, chunkZ);
-
-        driver.setPrimer(oldRegion, oldChunk);
     }
 
     private void generateMonorails(BuildingInfo info) {
@@ -448,6 +456,7 @@ public class LostCityTerrainFeature {
     }
 
     private void fixTorches(BuildingInfo info) {
+        ChunkDriver driver = context.get().driver;
         List<BlockPos> torches = info.getTorchTodo();
         if (torches.isEmpty()) {
             return;
@@ -488,6 +497,7 @@ public class LostCityTerrainFeature {
     }
 
     private void breakBlocksForDamage(int chunkX, int chunkZ, BuildingInfo info) {
+        ChunkDriver driver = context.get().driver;
         int cx = chunkX * 16;
         int cz = chunkZ * 16;
 
@@ -499,18 +509,8 @@ public class LostCityTerrainFeature {
         for (int yy = 0; yy < 16; yy++) {
             if (clear || damageArea.hasExplosions(yy)) {
                 if (clear || damageArea.isCompletelyDestroyed(yy)) {
-                    for (int x = 0; x < 16; x++) {
-                        for (int z = 0; z < 16; z++) {
-                            int height = yy * 16;
-                            driver.current(x, height, z);
-                            for (int y = 0; y < 16; y++) {
-                                // @TODO BAD
-                                // @todo 1.16 this can occasionally cause a crash in the lighting engine
-                                // I suspect this might be a vanilla bug
-//                                driver.add(((height + y) <= info.waterLevel) ? liquid : air);
-                            }
-                        }
-                    }
+                    // Replace the whole section at once. Setting every block here could crash the lighting engine
+                    driver.clearSection(yy, air, liquid, info.waterLevel);
                     // All further subchunks will also be totally cleared
                     clear = true;
                 } else {
@@ -585,6 +585,7 @@ public class LostCityTerrainFeature {
     }
 
     private void generateHighwayPart(BuildingInfo info, int level, Transform transform, BuildingInfo adjacent1, BuildingInfo adjacent2, String suffix) {
+        ChunkDriver driver = context.get().driver;
         int highwayGroundLevel = info.groundLevel + level * 6;
 
         BuildingPart part;
@@ -651,6 +652,7 @@ public class LostCityTerrainFeature {
     }
 
     private void clearRange(BuildingInfo info, int x, int z, int height1, int height2, boolean dowater) {
+        ChunkDriver driver = context.get().driver;
         if (dowater) {
             // Special case for drowned city
             driver.setBlockRangeSafe(x, height1, z, info.waterLevel, liquid);
@@ -661,6 +663,7 @@ public class LostCityTerrainFeature {
     }
 
     private void clearRange(BuildingInfo info, int x, int z, int height1, int height2, boolean dowater, Predicate<BlockState> test) {
+        ChunkDriver driver = context.get().driver;
         if (dowater) {
             // Special case for drowned city
             driver.setBlockRangeSafe(x, height1, z, info.waterLevel, liquid, test);
@@ -688,6 +691,7 @@ public class LostCityTerrainFeature {
     }
 
     private void generateBridge(BuildingInfo info, BuildingPart bt, Orientation orientation) {
+        ChunkDriver driver = context.get().driver;
         CompiledPalette compiledPalette = info.getCompiledPalette();
         for (int x = 0; x < 16; x++) {
             for (int z = 0; z < 16; z++) {
@@ -826,7 +830,7 @@ public class LostCityTerrainFeature {
      * or up the top layer (6 thick) of the terrain. In a chunk these heights are interpolated
      * (bilinear interpolation).
      */
-    private synchronized void correctTerrainShape(int chunkX, int chunkZ) {
+    private void correctTerrainShape(int chunkX, int chunkZ) {
         BuildingInfo info = BuildingInfo.getBuildingInfo(chunkX, chunkZ, provider);
         Integer[] mm00 = info.getDesiredMaxHeightL2();
         Integer[] mm10 = info.getXmax().getDesiredMaxHeightL2();
@@ -893,7 +897,7 @@ public class LostCityTerrainFeature {
     }
 
     // Return true if state is air or liquid
-    private static boolean isEmpty(BlockState state) {
+    static boolean isEmpty(BlockState state) {
         Material material = state.getMaterial();
         if (material == Material.AIR) {
             return true;
@@ -913,6 +917,7 @@ public class LostCityTerrainFeature {
     }
 
     private void moveUp(BuildingInfo info, int x, int z, int height, boolean dowater) {
+        ChunkDriver driver = context.get().driver;
         // Find the first non-empty block starting at the given height
         driver.current(x, height, z);
         // We assume here we are not in a void chunk
@@ -938,6 +943,7 @@ public class LostCityTerrainFeature {
     }
 
     private boolean moveDown(BuildingInfo info, int x, int z, int height, boolean dowater) {
+        ChunkDriver driver = context.get().driver;
         int y = 255;
         driver.current(x, y, z);
         // We assume here we are not in a void chunk
@@ -972,6 +978,7 @@ public class LostCityTerrainFeature {
 
     @Deprecated
     private void flattenChunkToCityBorder(int chunkX, int chunkZ) {
+        Random rand = context.get().rand;
         int cx = chunkX * 16;
         int cz = chunkZ * 16;
 
@@ -1044,7 +1051,7 @@ public class LostCityTerrainFeature {
     }
 
     public static boolean isWaterBiome(IDimensionInfo provider, ChunkCoord coord) {
-        BiomeInfo biomeInfo = BiomeInfo.getBiomeInfo(provider, coord);
+        BiomeInfo biomeInfo = BiomeInfo.getBiomeInfo(provider, coord.getChunkX(), coord.getChunkZ());
         Biome mainBiome = biomeInfo.getMainBiome();
         return isWaterBiome(mainBiome);
     }
@@ -1056,6 +1063,7 @@ public class LostCityTerrainFeature {
 
     @Deprecated
     private void flattenChunkBorder(BuildingInfo info, int x, int offset, int z, Random rand, int level) {
+        ChunkDriver driver = context.get().driver;
         driver.current(x, 0, z);
         for (int y = 0; y <= (level - offset - rand.nextInt(2)); y++) {
             BlockState b = driver.getBlock();
@@ -1075,11 +1083,13 @@ public class LostCityTerrainFeature {
         clearRange(info, x, z, level + offset + r, 230, info.waterLevel > info.groundLevel);
     }
 
-    public synchronized ChunkHeightmap getHeightmap(int chunkX, int chunkZ, @Nonnull ISeedReader world) {
-        ChunkCoord key = new ChunkCoord(world.getLevel().dimension(), chunkX, chunkZ);
-        if (cachedHeightmaps.containsKey(key)) {
-            return cachedHeightmaps.get(key);
-        } else {
+    /**
+     * Get the (predicted) heightmap of a chunk. The feature is per dimension so the cache is as well.
+     * Calculating a heightmap is expensive so it happens outside any lock and threads that need the
+     * same chunk at the same time wait for a single calculation.
+     */
+    public ChunkHeightmap getHeightmap(int chunkX, int chunkZ, @Nonnull ISeedReader world) {
+        return cachedHeightmaps.computeIfAbsent(chunkX, chunkZ, () -> {
             ChunkHeightmap heightmap = new ChunkHeightmap(profile.LANDSCAPE_TYPE, profile.GROUNDLEVEL, base);
 
             boolean doNoiseVariant = false;
@@ -1094,11 +1104,12 @@ public class LostCityTerrainFeature {
             } else {
                 makeDummyChunk(heightmap);
             }
-
-
-            cachedHeightmaps.put(key, heightmap);
             return heightmap;
-        }
+        });
+    }
+
+    public String getHeightmapCacheStatistics() {
+        return cachedHeightmaps.toString();
     }
 
     private void makeDummyChunk(ChunkHeightmap heightmap) {
@@ -1116,11 +1127,90 @@ public class LostCityTerrainFeature {
         ChunkGenerator generator = chunkProvider.getGenerator();
 
         generator.createBiomes(region.registryAccess().registryOrThrow(Registry.BIOME_REGISTRY), primer);
-        updateHeightmap((NoiseChunkGenerator) generator, primer, heightmap);
+        updateHeightmap((NoiseChunkGenerator) generator, primer.getPos(), heightmap);
     }
 
-    public static void updateHeightmap(NoiseChunkGenerator chunkGenerator, IChunk chunk, ChunkHeightmap heightmap) {
-        ChunkPos chunkpos = chunk.getPos();
+    /**
+     * Calculate the heightmap for a chunk from the noise. This gives exactly the same result as
+     * updateHeightmapFullScan() but every column is scanned from the top down and we stop at the
+     * first block that the heightmap accepts. In addition noise cells above sea level where none of
+     * the eight corners has a positive density are skipped as a whole (interpolation can't make
+     * anything solid there).
+     */
+    public static void updateHeightmap(NoiseChunkGenerator chunkGenerator, ChunkPos chunkpos, ChunkHeightmap heightmap) {
+        int chunkX = chunkpos.x;
+        int chunkZ = chunkpos.z;
+        int countX = chunkGenerator.chunkCountX;
+        int countY = chunkGenerator.chunkCountY;
+        int countZ = chunkGenerator.chunkCountZ;
+        int width = chunkGenerator.chunkWidth;
+        int height = chunkGenerator.chunkHeight;
+
+        double[][][] noise = new double[countX + 1][countZ + 1][countY + 1];
+        for (int nx = 0; nx <= countX; nx++) {
+            for (int nz = 0; nz <= countZ; nz++) {
+                chunkGenerator.fillNoiseColumn(noise[nx][nz], chunkX * countX + nx, chunkZ * countZ + nz);
+            }
+        }
+
+        // We only know for the vanilla generator that no density above sea level means air
+        boolean skipEmptyCells = chunkGenerator.getClass() == NoiseChunkGenerator.class;
+        int seaLevel = chunkGenerator.getSeaLevel();
+
+        for (int nx = 0; nx < countX; nx++) {
+            for (int nz = 0; nz < countZ; nz++) {
+                double[] n00 = noise[nx][nz];
+                double[] n01 = noise[nx][nz + 1];
+                double[] n10 = noise[nx + 1][nz];
+                double[] n11 = noise[nx + 1][nz + 1];
+                for (int l2 = 0; l2 < width; l2++) {
+                    int xxx = (nx * width + l2) & 15;
+                    double d13 = (double) l2 / (double) width;
+                    for (int k3 = 0; k3 < width; k3++) {
+                        int zzz = (nz * width + k3) & 15;
+                        double d16 = (double) k3 / (double) width;
+                        int before = heightmap.getHeight(xxx, zzz);
+                        column:
+                        for (int ny = countY - 1; ny >= 0; ny--) {
+                            if (skipEmptyCells && ny * height >= seaLevel
+                                    && n00[ny] <= 0 && n01[ny] <= 0 && n10[ny] <= 0 && n11[ny] <= 0
+                                    && n00[ny + 1] <= 0 && n01[ny + 1] <= 0 && n10[ny + 1] <= 0 && n11[ny + 1] <= 0) {
+                                continue;
+                            }
+                            for (int l1 = height - 1; l1 >= 0; l1--) {
+                                int yy = ny * height + l1;
+                                // Same interpolation (and order of operations) as updateHeightmapFullScan()
+                                double d8 = (double) l1 / (double) height;
+                                double d9 = MathHelper.lerp(d8, n00[ny], n00[ny + 1]);
+                                double d10 = MathHelper.lerp(d8, n10[ny], n10[ny + 1]);
+                                double d11 = MathHelper.lerp(d8, n01[ny], n01[ny + 1]);
+                                double d12 = MathHelper.lerp(d8, n11[ny], n11[ny + 1]);
+                                double d14 = MathHelper.lerp(d13, d9, d10);
+                                double d15 = MathHelper.lerp(d13, d11, d12);
+                                double d17 = MathHelper.lerp(d16, d14, d15);
+                                double d18 = MathHelper.clamp(d17 / 200.0D, -1.0D, 1.0D);
+
+                                BlockState blockstate = chunkGenerator.generateBaseState(d18, yy);
+                                if (blockstate != air) {
+                                    heightmap.update(xxx, yy, zzz, blockstate);
+                                    if (heightmap.getHeight(xxx, zzz) != before) {
+                                        // Everything below this is lower so it can't change the heightmap anymore
+                                        break column;
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculate the heightmap for a chunk by evaluating every block of the noise cube. This is
+     * slow and only kept as a reference for updateHeightmap()
+     */
+    public static void updateHeightmapFullScan(NoiseChunkGenerator chunkGenerator, ChunkPos chunkpos, ChunkHeightmap heightmap) {
         int chunkX = chunkpos.x;
         int chunkZ = chunkpos.z;
         int cx = chunkX << 4;
@@ -1194,6 +1284,7 @@ public class LostCityTerrainFeature {
     }
 
     private void doCityChunk(int chunkX, int chunkZ, BuildingInfo info) {
+        ChunkDriver driver = context.get().driver;
         boolean building = info.hasBuilding;
 
         ChunkHeightmap heightmap = getHeightmap(info.chunkX, info.chunkZ, provider.getWorld());
@@ -1271,6 +1362,7 @@ public class LostCityTerrainFeature {
     }
 
     private void generateRailways(BuildingInfo info, Railway.RailChunkInfo railInfo) {
+        ChunkDriver driver = context.get().driver;
         int height = info.groundLevel + railInfo.getLevel() * 6;
         RailChunkType type = railInfo.getType();
         BuildingPart part;
@@ -1519,171 +1611,12 @@ public class LostCityTerrainFeature {
     }
 
     public long getSeed() {
-        return driver.getRegion().getSeed();
-    }
-
-    private static class Blob implements Comparable<Blob> {
-        private final int starty;
-        private final Set<BlockPos> connectedBlocks = new HashSet<>();
-        private final Map<Integer, Integer> blocksPerY = new HashMap<>();
-        private int connections = 0;
-        private int lowestY;
-        private int highestY;
-        private float avgdamage;
-        private int cntMindamage;  // Number of blocks that receive almost no damage
-
-        public Blob(int starty) {
-            this.starty = starty;
-            lowestY = 256;
-            highestY = 0;
-        }
-
-        public float getAvgdamage() {
-            return avgdamage;
-        }
-
-        public int getCntMindamage() {
-            return cntMindamage;
-        }
-
-        public boolean contains(BlockPos index) {
-            return connectedBlocks.contains(index);
-        }
-
-        public int getLowestY() {
-            return lowestY;
-        }
-
-        public int getHighestY() {
-            return highestY;
-        }
-
-        public int needsSplitting() {
-            float averageBlocksPerLevel = (float) connectedBlocks.size() / (highestY - lowestY + 1);
-            int connectionThreshold = (int) (averageBlocksPerLevel / 10);
-            if (connectionThreshold <= 0) {
-                // Too small to split
-                return -1;
-            }
-            int cuttingY = -1;      // Where we will cut
-            int cuttingCount = 1000000;
-            for (int y = lowestY; y <= highestY; y++) {
-                if (y >= 3 && blocksPerY.get(y) <= connectionThreshold) {
-                    if (blocksPerY.get(y) < cuttingCount) {
-                        cuttingCount = blocksPerY.get(y);
-                        cuttingY = y;
-                    } else if (blocksPerY.get(y) > cuttingCount * 4) {
-                        return cuttingY;
-                    }
-                }
-            }
-            return -1;
-        }
-
-        public boolean destroyOrMoveThis(IDimensionInfo provider, BuildingInfo info) {
-            return connections < 5 || (((float) connections / connectedBlocks.size()) < info.profile.DESTROY_LONE_BLOCKS_FACTOR);
-        }
-
-        private boolean isOutside(BuildingInfo info, int x, int y, int z) {
-            if (x < 0) {
-                if (y <= info.getXmin().getMaxHeight() + 3) {
-                    connections++;
-                }
-                return true;
-            }
-            if (x > 15) {
-                if (y <= info.getXmax().getMaxHeight() + 3) {
-                    connections++;
-                }
-                return true;
-            }
-            if (z < 0) {
-                if (y <= info.getZmin().getMaxHeight() + 3) {
-                    connections++;
-                }
-                return true;
-            }
-            if (z > 15) {
-                if (y <= info.getZmax().getMaxHeight() + 3) {
-                    connections++;
-                }
-                return true;
-            }
-            if (y < starty) {
-                connections += 5;
-                return true;
-            }
-            return false;
-        }
-
-        public void scan(BuildingInfo info, ChunkDriver driver, BlockState air, BlockState liquid, BlockPos pos) {
-            DamageArea damageArea = info.getDamageArea();
-            avgdamage = 0;
-            cntMindamage = 0;
-            Queue<BlockPos> todo = new ArrayDeque<>();
-            todo.add(pos);
-
-            while (!todo.isEmpty()) {
-                pos = todo.poll();
-                int x = pos.getX();
-                int y = pos.getY();
-                int z = pos.getZ();
-                if (connectedBlocks.contains(pos)) {
-                    continue;
-                }
-                if (isOutside(info, x, y, z)) {
-                    continue;
-                }
-                driver.current(x, y, z);
-                if (isEmpty(driver.getBlock())) {
-                    continue;
-                }
-                connectedBlocks.add(pos);
-                float damage = damageArea.getDamage(x, y, z);
-                if (damage < 0.01f) {
-                    cntMindamage++;
-                }
-                avgdamage += damage;
-                if (!blocksPerY.containsKey(y)) {
-                    blocksPerY.put(y, 1);
-                } else {
-                    blocksPerY.put(y, blocksPerY.get(y) + 1);
-                }
-                if (y < lowestY) {
-                    lowestY = y;
-                }
-                if (y > highestY) {
-                    highestY = y;
-                }
-                todo.add(pos.above());
-                todo.add(pos.below());
-                todo.add(pos.east());
-                todo.add(pos.west());
-                todo.add(pos.south());
-                todo.add(pos.north());
-            }
-
-            avgdamage /= (float) connectedBlocks.size();
-        }
-
-        @Override
-        public int compareTo(Blob o) {
-            return this.lowestY - o.lowestY;
-        }
+        return context.get().driver.getRegion().getSeed();
     }
 
-    private Blob findBlob(List<Blob> blobs, BlockPos index) {
-        for (Blob blob : blobs) {
-            if (blob.contains(index)) {
-                return blob;
-            }
-        }
-        return null;
-    }
-
-
     /// Fix floating blocks after an explosion
     private void fixAfterExplosionNew(BuildingInfo info, Random rand) {
+        ChunkDriver driver = context.get().driver;
         int start = info.getDamageArea().getLowestExplosionHeight();
         if (start == -1) {
             // Nothing is affected
@@ -1691,64 +1624,58 @@ public class LostCityTerrainFeature {
         }
         int end = info.getDamageArea().getHighestExplosionHeight();
 
-        List<Blob> blobs = new ArrayList<>();
-
-        for (int x = 0; x < 16; x++) {
-            for (int z = 0; z < 16; z++) {
-                driver.current(x, start, z);
-                for (int y = start; y < end; y++) {
-                    BlockState p = driver.getBlock();
-                    if (p != air && p != liquid) {
-                        Blob blob = findBlob(blobs, driver.getCurrentCopy());
-                        if (blob == null) {
-                            blob = new Blob(start);
-                            // We must make a copy of the driver here so that we can safely modify it
-                            BlockPos current = driver.getCurrentCopy();
-                            blob.scan(info, driver, air, liquid, new BlockPos(x, y, z));
-                            blobs.add(blob);
-                            driver.current(current);
-                        }
+        BlobFinder blobs = blobFinder.get();
+        blobs.find(driver, info, air, liquid, start, end);
+
+        // Handle all blobs we delete or move with lowest first
+        for (int i = 0; i < blobs.getBlobCount(); i++) {
+            int blob = blobs.getSortedBlob(i);
+            int connections = blobs.getConnections(blob);
+            int size = blobs.getSize(blob);
+            if (connections < 5 || (((float) connections / size) < info.profile.DESTROY_LONE_BLOCKS_FACTOR)) {
+                if (rand.nextFloat() < info.profile.DESTROY_OR_MOVE_CHANCE || size < info.profile.DESTROY_SMALL_SECTIONS_SIZE
+                        || connections < 5) {
+                    for (int c = blobs.getFirstCell(blob); c < blobs.getLastCell(blob); c++) {
+                        int index = blobs.getCell(c);
+                        int y = blobs.getY(index);
+                        driver.current(blobs.getX(index), y, blobs.getZ(index));
+                        driver.block(y < info.waterLevel ? liquid : air);
                     }
-                    driver.incY();
+                } else {
+                    blobs.markMoving(blob);
                 }
             }
         }
+        // Blobs without blocks come last. They don't change anything but they still use a random number
+        for (int i = 0; i < blobs.getEmptyBlobs(); i++) {
+            rand.nextFloat();
+        }
 
-        Blob blocksToMove = new Blob(0);
-
-        // Sort all blobs we delete with lowest first
-        blobs.stream().filter(blob -> blob.destroyOrMoveThis(provider, info)).sorted().forEachOrdered(blob -> {
-            if (rand.nextFloat() < info.profile.DESTROY_OR_MOVE_CHANCE || blob.connectedBlocks.size() < info.profile.DESTROY_SMALL_SECTIONS_SIZE
-                    || blob.connections < 5) {
-                for (BlockPos index : blob.connectedBlocks) {
-                    driver.current(index);
-                    driver.block(((driver.getY()) < info.waterLevel) ? liquid : air);
-                }
-            } else {
-                blocksToMove.connectedBlocks.addAll(blob.connectedBlocks);
-            }
-        });
-        for (BlockPos index : blocksToMove.connectedBlocks) {
-            driver.current(index);
-            BlockState c = driver.getBlock();
-            driver.block(((driver.getY()) < info.waterLevel) ? liquid : air);
-            driver.decY();
-            int y = driver.getY();
-            while (y > 2 && (blocksToMove.contains(driver.getCurrentCopy()) || isEmpty(driver.getBlock()))) {
+        // Let the blocks that have to move fall down. Lowest blocks first
+        for (int index = 0; index < blobs.getIndexCount(); index++) {
+            if (blobs.isMoving(index)) {
+                int x = blobs.getX(index);
+                int z = blobs.getZ(index);
+                driver.current(x, blobs.getY(index), z);
+                BlockState c = driver.getBlock();
+                driver.block(((driver.getY()) < info.waterLevel) ? liquid : air);
                 driver.decY();
-                y--;
+                int y = driver.getY();
+                while (y > 2 && (blobs.isMoving(x, y, z) || isEmpty(driver.getBlock()))) {
+                    driver.decY();
+                    y--;
+                }
+                driver.incY();
+                driver.block(c);
             }
-            driver.incY();
-            driver.block(c);
         }
     }
 
-    private double[] rubbleBuffer = new double[256];
-    private double[] leavesBuffer = new double[256];
-
     private void generateRubble(int chunkX, int chunkZ, BuildingInfo info) {
-        this.rubbleBuffer = this.rubbleNoise.getRegion(this.rubbleBuffer, (chunkX * 16), (chunkZ * 16), 16, 16, 1.0 / 16.0, 1.0 / 16.0, 1.0D);
-        this.leavesBuffer = this.leavesNoise.getRegion(this.leavesBuffer, (chunkX * 64), (chunkZ * 64), 16, 16, 1.0 / 64.0, 1.0 / 64.0, 4.0D);
+        GenerationContext ctx = context.get();
+        ChunkDriver driver = ctx.driver;
+        double[] rubbleBuffer = ctx.rubbleBuffer = this.rubbleNoise.getRegion(ctx.rubbleBuffer, (chunkX * 16), (chunkZ * 16), 16, 16, 1.0 / 16.0, 1.0 / 16.0, 1.0D);
+        double[] leavesBuffer = ctx.leavesBuffer = this.leavesNoise.getRegion(ctx.leavesBuffer, (chunkX * 64), (chunkZ * 64), 16, 16, 1.0 / 64.0, 1.0 / 64.0, 4.0D);
 
         for (int x = 0; x < 16; ++x) {
             for (int z = 0; z < 16; ++z) {
@@ -1761,7 +1688,7 @@ public class LostCityTerrainFeature {
                     if (c != air && c != liquid) {
                         for (int i = 0; i < vr; i++) {
                             if (isEmpty(driver.getBlock())) {
-                                driver.add(getRandomDirt());
+                                driver.add(getRandomDirt(ctx));
                             } else {
                                 driver.incY();
                             }
@@ -1769,13 +1696,13 @@ public class LostCityTerrainFeature {
                     }
                     //first round may not have generated this - stops crash on create world
                     if(randomDirt == null) {
-                        getRandomDirt();
+                        getRandomDirt(ctx);
                     }
                     BlockState leafBaseState = driver.getBlockDown();
                     if (leafBaseState == base || Arrays.stream(randomDirt).anyMatch((b) -> b == leafBaseState)) {
                         for (int i = 0; i < vl; i++) {
                             if (isEmpty(driver.getBlock())) {
-                                driver.add(getRandomLeaf());
+                                driver.add(getRandomLeaf(ctx));
                             } else {
                                 driver.incY();
                             }
@@ -1827,20 +1754,22 @@ public class LostCityTerrainFeature {
     }
 
 
-    private double[] ruinBuffer = new double[256];
-
     private void generateRuins(BuildingInfo info) {
         if (info.ruinHeight < 0) {
             return;
         }
 
+        GenerationContext ctx = context.get();
+        ChunkDriver driver = ctx.driver;
+        Random rand = ctx.rand;
         int chunkX = info.chunkX;
         int chunkZ = info.chunkZ;
         double d0 = 0.03125D;
-        this.ruinBuffer = this.ruinNoise.getRegion(this.ruinBuffer, (chunkX * 16), (chunkZ * 16), 16, 16, d0 * 2.0D, d0 * 2.0D, 1.0D);
+        double[] ruinBuffer = ctx.ruinBuffer = this.ruinNoise.getRegion(ctx.ruinBuffer, (chunkX * 16), (chunkZ * 16), 16, 16, d0 * 2.0D, d0 * 2.0D, 1.0D);
         boolean doLeaves = info.profile.RUBBLELAYER;
+        double[] leavesBuffer = ctx.leavesBuffer;
         if (doLeaves) {
-            this.leavesBuffer = this.leavesNoise.getRegion(this.leavesBuffer, (chunkX * 64), (chunkZ * 64), 16, 16, 1.0 / 64.0, 1.0 / 64.0, 4.0D);
+            leavesBuffer = ctx.leavesBuffer = this.leavesNoise.getRegion(ctx.leavesBuffer, (chunkX * 64), (chunkZ * 64), 16, 16, 1.0 / 64.0, 1.0 / 64.0, 4.0D);
         }
 
         int baseheight = (int) (info.getCityGroundLevel() + 1 + (info.ruinHeight * info.getNumFloors() * 6.0f));
@@ -1870,7 +1799,7 @@ public class LostCityTerrainFeature {
                                 height++;   // Make sure we keep on filling with air a bit longer because we are lowering here
                                 c = driver.getBlockDown();
                             }
-                            driver.add(getRandomLeaf());
+                            driver.add(getRandomLeaf(ctx));
                             vl--;
                         } else {
                             driver.add(air);
@@ -1883,6 +1812,7 @@ public class LostCityTerrainFeature {
     }
 
     private void generateStreet(BuildingInfo info, ChunkHeightmap heightmap, Random rand) {
+        ChunkDriver driver = context.get().driver;
         boolean xRail = info.hasXCorridor();
         boolean zRail = info.hasZCorridor();
         if (xRail || zRail) {
@@ -1993,16 +1923,15 @@ public class LostCityTerrainFeature {
      * Fill base blocks under streets to bedrock
      */
     private void fillToBedrockStreetBlock(BuildingInfo info) {
+        ChunkDriver driver = context.get().driver;
         // Base blocks below streets
         for (int x = 0; x < 16; ++x) {
             for (int z = 0; z < 16; ++z) {
                 int y = info.getCityGroundLevel()-1;
-                driver.current(x, y, z);
-                while (driver.getY() > info.profile.BEDROCK_LAYER && isEmpty(driver.getBlock())) {
-                    driver.block(base);
-                    driver.decY();
+                while (y > info.profile.BEDROCK_LAYER && isEmpty(driver.getBlock(x, y, z))) {
+                    y--;
                 }
-//                driver.setBlockRange(x, info.profile.BEDROCK_LAYER, z, info.getCityGroundLevel(), baseChar);
+                driver.setBlockRangeWithShapes(x, y + 1, z, info.getCityGroundLevel(), base);
             }
         }
     }
@@ -2011,6 +1940,7 @@ public class LostCityTerrainFeature {
      * Fill from a certain lowest level with base blocks until non air is hit
      */
     private void fillToGroundStreetBlock(BuildingInfo info, int lowestLevel) {
+        ChunkDriver driver = context.get().driver;
         for (int x = 0; x < 16; ++x) {
             for (int z = 0; z < 16; ++z) {
                 int y = lowestLevel - 1;
@@ -2027,6 +1957,7 @@ public class LostCityTerrainFeature {
      * Fill a main street block with base blocks and border blocks at the bottom
      */
     private void fillMainStreetBlock(BuildingInfo info, Character borderBlock, int offset) {
+        ChunkDriver driver = context.get().driver;
         BlockState border = info.getCompiledPalette().get(borderBlock);
         for (int x = 0; x < 16; ++x) {
             for (int z = 0; z < 16; ++z) {
@@ -2040,6 +1971,7 @@ public class LostCityTerrainFeature {
      * Generate a single border column for one side of a street block
      */
     private void generateBorder(BuildingInfo info, boolean canDoParks, int x, int z, BuildingInfo adjacent) {
+        ChunkDriver driver = context.get().driver;
         Character borderBlock = info.getCityStyle().getBorderBlock();
         Character wallBlock = info.getCityStyle().getWallBlock();
         BlockState wall = info.getCompiledPalette().get(wallBlock);
@@ -2090,6 +2022,7 @@ public class LostCityTerrainFeature {
      * Generate a column of wall blocks (and stone below that in water)
      */
     private void generateBorderSupport(BuildingInfo info, BlockState wall, int x, int z, int offset) {
+        ChunkDriver driver = context.get().driver;
         ChunkHeightmap heightmap = getHeightmap(info.chunkX, info.chunkZ, provider.getWorld());
         int height = heightmap.getHeight(x, z);
         if (height > 1) {
@@ -2114,6 +2047,7 @@ public class LostCityTerrainFeature {
     }
 
     private void generateCorridors(BuildingInfo info, boolean xRail, boolean zRail) {
+        ChunkDriver driver = context.get().driver;
         BlockState railx = Blocks.RAIL.defaultBlockState().setValue(RailBlock.SHAPE, RailShape.EAST_WEST);
         BlockState railz = Blocks.RAIL.defaultBlockState();
 
@@ -2151,6 +2085,8 @@ public class LostCityTerrainFeature {
     }
 
     private void generateRandomVegetation(BuildingInfo info, Random rand, int height) {
+        GenerationContext ctx = context.get();
+        ChunkDriver driver = ctx.driver;
         if (info.getXmin().hasBuilding) {
             for (int x = 0; x < info.profile.THICKNESS_OF_RANDOM_LEAFBLOCKS; x++) {
                 for (int z = 0; z < 16; z++) {
@@ -2162,7 +2098,7 @@ public class LostCityTerrainFeature {
                     float v = Math.min(.8f, info.profile.CHANCE_OF_RANDOM_LEAFBLOCKS * (info.profile.THICKNESS_OF_RANDOM_LEAFBLOCKS + 1 - x));
                     int cnt = 0;
                     while (rand.nextFloat() < v && cnt < 30) {
-                        driver.add(getRandomLeaf());
+                        driver.add(getRandomLeaf(ctx));
                         cnt++;
                     }
                 }
@@ -2179,7 +2115,7 @@ public class LostCityTerrainFeature {
                     float v = Math.min(.8f, info.profile.CHANCE_OF_RANDOM_LEAFBLOCKS * (x - 14 + info.profile.THICKNESS_OF_RANDOM_LEAFBLOCKS));
                     int cnt = 0;
                     while (rand.nextFloat() < v && cnt < 30) {
-                        driver.add(getRandomLeaf());
+                        driver.add(getRandomLeaf(ctx));
                         cnt++;
                     }
                 }
@@ -2196,7 +2132,7 @@ public class LostCityTerrainFeature {
                     float v = Math.min(.8f, info.profile.CHANCE_OF_RANDOM_LEAFBLOCKS * (info.profile.THICKNESS_OF_RANDOM_LEAFBLOCKS + 1 - z));
                     int cnt = 0;
                     while (rand.nextFloat() < v && cnt < 30) {
-                        driver.add(getRandomLeaf());
+                        driver.add(getRandomLeaf(ctx));
                         cnt++;
                     }
                 }
@@ -2213,7 +2149,7 @@ public class LostCityTerrainFeature {
                     float v = info.profile.CHANCE_OF_RANDOM_LEAFBLOCKS * (z - 14 + info.profile.THICKNESS_OF_RANDOM_LEAFBLOCKS);
                     int cnt = 0;
                     while (rand.nextFloat() < v && cnt < 30) {
-                        driver.add(getRandomLeaf());
+                        driver.add(getRandomLeaf(ctx));
                         cnt++;
                     }
                 }
@@ -2222,6 +2158,9 @@ public class LostCityTerrainFeature {
     }
 
     private void generateParkSection(BuildingInfo info, int height, boolean elevated) {
+        GenerationContext ctx = context.get();
+        ChunkDriver driver = ctx.driver;
+        BlockState street = ctx.street;
         BlockState b;
         boolean el00 = info.getXmin().getZmin().isElevatedParkSection();
         boolean el10 = info.getZmin().isElevatedParkSection();
@@ -2279,20 +2218,29 @@ public class LostCityTerrainFeature {
     }
 
     private void generateFullStreetSection(int height) {
-        BlockState b;
+        GenerationContext ctx = context.get();
+        ChunkDriver driver = ctx.driver;
+        BlockState street = ctx.street;
+        BlockState street2 = ctx.street2;
+        BlockState[] layer = ctx.layerBuffer;
         for (int x = 0; x < 16; ++x) {
             for (int z = 0; z < 16; ++z) {
                 if (isSide(x, z)) {
-                    b = street;
+                    layer[(x << 4) | z] = street;
                 } else {
-                    b = street2;
+                    layer[(x << 4) | z] = street2;
                 }
-                driver.current(x, height, z).block(b);
             }
         }
+        driver.setBlockLayer(height, layer);
     }
 
     private void generateNormalStreetSection(BuildingInfo info, int height) {
+        GenerationContext ctx = context.get();
+        ChunkDriver driver = ctx.driver;
+        BlockState street = ctx.street;
+        BlockState streetBase = ctx.streetBase;
+        int streetBorder = ctx.streetBorder;
 //        char defaultStreet = info.profile.isFloating() ? street2 : streetBase;
         BlockState defaultStreet = streetBase;
         BlockState b;
@@ -2346,6 +2294,20 @@ public class LostCityTerrainFeature {
         return false;
     }
 
+    /**
+     * Generate a single part in the chunk of the given context outside of generate(). Shapes are not
+     * fixed (that needs the region). This is used by the benchmarks to run generatePart without a world
+     */
+    public int generatePart(GenerationContext ctx, BuildingInfo info, IBuildingPart part, Transform transform, int oy) {
+        GenerationContext oldContext = context.get();
+        context.set(ctx);
+        try {
+            return generatePart(info, part, transform, oy, false);
+        } finally {
+            restoreContext(oldContext);
+        }
+    }
+
     /**
      * Generate a part. If 'airWaterLevel' is true then 'hard air' blocks are replaced with water below the waterLevel.
      * Otherwise they are replaced with air.
@@ -2353,112 +2315,104 @@ public class LostCityTerrainFeature {
     private int generatePart(BuildingInfo info, IBuildingPart part,
                              Transform transform,
                              int oy, boolean airWaterLevel) {
+        GenerationContext ctx = context.get();
+        ChunkDriver driver = ctx.driver;
+        Random rand = ctx.rand;
         CompiledPalette compiledPalette = info.getCompiledPalette();
-        // Cache the combined palette?
         Palette localPalette = part.getLocalPalette();
         if (localPalette != null) {
-            compiledPalette = new CompiledPalette(compiledPalette, localPalette);
+            compiledPalette = compiledPalette.withLocalPalette(localPalette);
         }
+        CompiledPart compiledPart = compiledPalette.getCompiledPart(part, transform);
 
         boolean nowater = part.getMetaBoolean("nowater");
 
-        for (int x = 0; x < part.getXSize(); x++) {
-            for (int z = 0; z < part.getZSize(); z++) {
-                char[] vs = part.getVSlice(x, z);
-                if (vs != null) {
-                    int rx = transform.rotateX(x, z);
-                    int rz = transform.rotateZ(x, z);
-                    driver.current(rx, oy, rz);
-                    int len = vs.length;
-                    for (int y = 0; y < len; y++) {
-                        char c = vs[y];
-                        BlockState b = compiledPalette.get(c);
-                        if (b == null) {
-                            throw new RuntimeException("Could not find entry '" + c + "' in the palette for part '" + part.getName() + "'!");
-                        }
+        for (CompiledPart.Column column : compiledPart.getColumns()) {
+            int rx = column.getX();
+            int rz = column.getZ();
+            driver.current(rx, oy, rz);
+            int len = column.getHeight();
+            for (int y = 0; y < len; y++) {
+                BlockState b = column.getState(y, ctx);
+                byte flags = column.getFlags(y);
+                if (flags == CompiledPart.SKIP) {
+                    driver.incY();
+                    continue;
+                }
+                if (flags == CompiledPart.PLAIN && b != liquid) {
+                    driver.add(b);
+                    continue;
+                }
 
-                        CompiledPalette.Info inf = compiledPalette.getInfo(c);
-
-                        if (transform != Transform.ROTATE_NONE) {
-                            if (getRotatableStates().contains(b)) {
-                                b = b.rotate(transform.getMcRotation());
-                            } else if (getRailStates().contains(b)) {
-                                EnumProperty<RailShape> shapeProperty;
-                                if (b.getBlock() == Blocks.RAIL) {
-                                    shapeProperty = RailBlock.SHAPE;
-                                } else if (b.getBlock() == Blocks.POWERED_RAIL) {
-                                    shapeProperty = PoweredRailBlock.SHAPE;
-                                } else {
-                                    throw new RuntimeException("Error with rail!");
-                                }
-                                RailShape shape = b.getValue(shapeProperty);
-                                b = b.setValue(shapeProperty, transform.transform(shape));
-                            }
+                char c = column.getCharacter(y);
+                if (b == null) {
+                    throw new RuntimeException("Could not find entry '" + c + "' in the palette for part '" + part.getName() + "'!");
+                }
+
+                CompiledPalette.Info inf = compiledPalette.getInfo(c);
+
+                // We don't replace the world where the part is empty (air)
+                if (b != air) {
+                    Runnable action = null;
+                    if (b == liquid) {
+                        if (info.profile.AVOID_WATER) {
+                            b = air;
                         }
-                        // We don't replace the world where the part is empty (air)
-                        if (b != air) {
-                            Runnable action = null;
-                            if (b == liquid) {
-                                if (info.profile.AVOID_WATER) {
-                                    b = air;
-                                }
-                            } else if (b == hardAir) {
-                                if (airWaterLevel && !info.profile.AVOID_WATER && !nowater) {
-                                    b = (oy + y) < info.waterLevel ? liquid : air;
-                                } else {
-                                    b = air;
-                                }
-                            } else if (inf != null) {
-                                if (inf.isTorch()) {
-                                    if (info.profile.GENERATE_LIGHTING) {
-                                        info.addTorchTodo(driver.getCurrentCopy());
-                                    } else {
-                                        b = air;        // No torches
-                                    }
-                                } else if (inf.getLoot() != null && !inf.getLoot().isEmpty()) {
-                                    if (!info.noLoot) {
-                                        BlockPos pos = new BlockPos(info.chunkX * 16 + rx, oy + y, info.chunkZ * 16 + rz);
-                                        BlockState finalB = b;
-                                        action = () -> {
-                                            provider.getWorld().setBlock(pos, finalB, 2);
-                                            generateLoot(info, provider.getWorld(), pos, new BuildingInfo.ConditionTodo(inf.getLoot(), part.getName(), info));
-                                        };
-                                    }
-                                } else if (inf.getMobId() != null && !inf.getMobId().isEmpty()) {
-                                    if (info.profile.GENERATE_SPAWNERS && !info.noLoot) {
-                                        String mobid = inf.getMobId();
-
-                                        BlockPos pos = new BlockPos(info.chunkX * 16 + rx, oy + y, info.chunkZ * 16 + rz);
-                                        BlockState finalB1 = b;
-                                        action = () -> {
-                                            provider.getWorld().setBlock(pos, finalB1, 2);
-                                            createSpawner(rand, provider, info, new BuildingInfo.ConditionTodo(mobid, part.getName(), info), pos);
-                                        };
-                                    } else {
-                                        b = air;
-                                    }
-                                }
-                            } else if (getStatesNeedingLightingUpdate().contains(b)) {
-                                info.getTodoChunk(rx, rz).addLightingUpdateTodo(new BlockPos(info.chunkX * 16 + rx, oy + y, info.chunkZ * 16 + rz));
-                            } else if (getStatesNeedingTodo().contains(b)) {
-                                BlockState bs = b;
-                                Block block = bs.getBlock();
-                                if (block instanceof SaplingBlock || block instanceof FlowerBlock) {
-                                    if (info.profile.AVOID_FOLIAGE) {
-                                        b = air;
-                                    } else {
-                                        info.getTodoChunk(rx, rz).addSaplingTodo(new BlockPos(info.chunkX * 16 + rx, oy + y, info.chunkZ * 16 + rz));
-                                    }
-                                }
+                    } else if (b == hardAir) {
+                        if (airWaterLevel && !info.profile.AVOID_WATER && !nowater) {
+                            b = (oy + y) < info.waterLevel ? liquid : air;
+                        } else {
+                            b = air;
+                        }
+                    } else if (inf != null) {
+                        if (inf.isTorch()) {
+                            if (info.profile.GENERATE_LIGHTING) {
+                                info.addTorchTodo(driver.getCurrentCopy());
+                            } else {
+                                b = air;        // No torches
                             }
-                            driver.add(b);
-                            if (action != null) {
-                                action.run();
+                        } else if (inf.getLoot() != null && !inf.getLoot().isEmpty()) {
+                            if (!info.noLoot) {
+                                BlockPos pos = new BlockPos(info.chunkX * 16 + rx, oy + y, info.chunkZ * 16 + rz);
+                                BlockState finalB = b;
+                                action = () -> {
+                                    provider.getWorld().setBlock(pos, finalB, 2);
+                                    generateLoot(info, provider.getWorld(), pos, new BuildingInfo.ConditionTodo(inf.getLoot(), part.getName(), info));
+                                };
+                            }
+                        } else if (inf.getMobId() != null && !inf.getMobId().isEmpty()) {
+                            if (info.profile.GENERATE_SPAWNERS && !info.noLoot) {
+                                String mobid = inf.getMobId();
+
+                                BlockPos pos = new BlockPos(info.chunkX * 16 + rx, oy + y, info.chunkZ * 16 + rz);
+                                BlockState finalB1 = b;
+                                action = () -> {
+                                    provider.getWorld().setBlock(pos, finalB1, 2);
+                                    createSpawner(rand, provider, info, new BuildingInfo.ConditionTodo(mobid, part.getName(), info), pos);
+                                };
+                            } else {
+                                b = air;
+                            }
+                        }
+                    } else if (getStatesNeedingLightingUpdate().contains(b)) {
+                        info.getTodoChunk(rx, rz).addLightingUpdateTodo(new BlockPos(info.chunkX * 16 + rx, oy + y, info.chunkZ * 16 + rz));
+                    } else if (getStatesNeedingTodo().contains(b)) {
+                        BlockState bs = b;
+                        Block block = bs.getBlock();
+                        if (block instanceof SaplingBlock || block instanceof FlowerBlock) {
+                            if (info.profile.AVOID_FOLIAGE) {
+                                b = air;
+                            } else {
+                                info.getTodoChunk(rx, rz).addSaplingTodo(new BlockPos(info.chunkX * 16 + rx, oy + y, info.chunkZ * 16 + rz));
                             }
-                        } else {
-                            driver.incY();
                         }
                     }
+                    driver.add(b);
+                    if (action != null) {
+                        action.run();
+                    }
+                } else {
+                    driver.incY();
                 }
             }
         }
@@ -2508,6 +2462,7 @@ public class LostCityTerrainFeature {
 
 
     private void generateLoot(BuildingInfo info, IWorld world, BlockPos pos, BuildingInfo.ConditionTodo condition) {
+        Random rand = context.get().rand;
         TileEntity te = world.getBlockEntity(pos);
         if (te instanceof LockableLootTileEntity) {
             if (this.provider.getProfile().GENERATE_LOOT) {
@@ -2562,6 +2517,7 @@ public class LostCityTerrainFeature {
     }
 
     private void generateDebrisFromChunk(Random rand, BuildingInfo info, BuildingInfo adjacentInfo, BiFunction<Integer, Integer, Float> locationFactor) {
+        ChunkDriver driver = context.get().driver;
         if (adjacentInfo.hasBuilding) {
             BlockState filler = adjacentInfo.getCompiledPalette().get(adjacentInfo.getBuilding().getFillerBlock());
             float damageFactor = adjacentInfo.getDamageArea().getDamageFactor();
@@ -2628,6 +2584,7 @@ public class LostCityTerrainFeature {
     }
 
     private void setBlocksFromPalette(int x, int y, int z, int y2, CompiledPalette palette, char character) {
+        ChunkDriver driver = context.get().driver;
         if (palette.isSimple(character)) {
             BlockState b = palette.get(character);
             driver.setBlockRangeSafe(x, y, z, y2, b);
@@ -2641,6 +2598,7 @@ public class LostCityTerrainFeature {
     }
 
     private void generateBuilding(BuildingInfo info, ChunkHeightmap heightmap) {
+        ChunkDriver driver = context.get().driver;
         int lowestLevel = info.getCityGroundLevel() - info.floorsBelowGround * 6;
 
         Character borderBlock = info.getCityStyle().getBorderBlock();
@@ -2760,6 +2718,7 @@ public class LostCityTerrainFeature {
 
     // Used for space type worlds: fill underside the building/street until a block is encountered
     private void fillToGround(BuildingInfo info, int lowestLevel, Character borderBlock) {
+        ChunkDriver driver = context.get().driver;
         for (int x = 0; x < 16; ++x) {
             for (int z = 0; z < 16; ++z) {
                 int y = lowestLevel - 1;
@@ -2787,6 +2746,7 @@ public class LostCityTerrainFeature {
     }
 
     private void generateDoors(BuildingInfo info, int height, int f) {
+        ChunkDriver driver = context.get().driver;
 
         BlockState filler = info.getCompiledPalette().get(info.getBuilding().getFillerBlock());
 
@@ -2884,6 +2844,7 @@ public class LostCityTerrainFeature {
     }
 
     private void generateCorridorConnections(BuildingInfo info) {
+        ChunkDriver driver = context.get().driver;
         if (info.getXmin().hasXCorridor()) {
             int x = 0;
             for (int z = 7; z <= 10; z++) {
@@ -2948,6 +2909,7 @@ public class LostCityTerrainFeature {
     }
 
     private boolean isStreetBorder(int x, int z) {
+        int streetBorder = context.get().streetBorder;
         return x <= streetBorder || x >= (15 - streetBorder) || z <= streetBorder || z >= (15 - streetBorder);
     }
 }
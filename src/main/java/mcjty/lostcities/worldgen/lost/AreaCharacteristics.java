@@ -0,0 +1,103 @@
+package mcjty.lostcities.worldgen.lost;
+
+import mcjty.lostcities.api.LostChunkCharacteristics;
+import mcjty.lostcities.config.LostCityProfile;
+import mcjty.lostcities.worldgen.IDimensionInfo;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Calculate the chunk characteristics of a whole rectangle of chunks at once. This happens in two
+ * passes that are both split over the fork/join pool. The first pass calculates the data that
+ * neighbouring chunks share (city factor and city level, the heightmaps behind that, the city centers
+ * and the highways) for the rectangle and a border of one chunk. The second pass calculates the
+ * characteristics themselves which then only has to look up the shared data.
+ * The result is the same as calling BuildingInfo.getChunkCharacteristics() for every chunk
+ */
+public class AreaCharacteristics {
+
+    // Rectangles with at most this many chunks are not split any further
+    private static final int THRESHOLD = 64;
+
+    private final int minChunkX;
+    private final int minChunkZ;
+    private final int sizeX;
+    private final int sizeZ;
+    private final IDimensionInfo provider;
+
+    private AreaCharacteristics(int minChunkX, int minChunkZ, int sizeX, int sizeZ, IDimensionInfo provider) {
+        this.minChunkX = minChunkX;
+        this.minChunkZ = minChunkZ;
+        this.sizeX = sizeX;
+        this.sizeZ = sizeZ;
+        this.provider = provider;
+    }
+
+    /**
+     * Return the characteristics of all chunks in the rectangle. The characteristics of chunk (x,z)
+     * are at index (z - minChunkZ) * sizeX + (x - minChunkX)
+     */
+    public static LostChunkCharacteristics[] getChunkCharacteristics(int minChunkX, int minChunkZ, int sizeX, int sizeZ, IDimensionInfo provider) {
+        if (sizeX < 0 || sizeZ < 0) {
+            throw new IllegalArgumentException("Invalid area size " + sizeX + "x" + sizeZ + "!");
+        }
+        AreaCharacteristics area = new AreaCharacteristics(minChunkX, minChunkZ, sizeX, sizeZ, provider);
+        LostChunkCharacteristics[] result = new LostChunkCharacteristics[sizeX * sizeZ];
+        ForkJoinPool.commonPool().invoke(area.new Task(minChunkX - 1, minChunkZ - 1, sizeX + 2, sizeZ + 2, null));
+        ForkJoinPool.commonPool().invoke(area.new Task(minChunkX, minChunkZ, sizeX, sizeZ, result));
+        return result;
+    }
+
+    private void prepare(int chunkX, int chunkZ) {
+        LostCityProfile profile = BuildingInfo.getProfile(chunkX, chunkZ, provider);
+        BuildingInfo.isCityRaw(chunkX, chunkZ, provider, profile);
+        BuildingInfo.getCityLevel(chunkX, chunkZ, provider);
+        Highway.getXHighwayLevel(chunkX, chunkZ, provider, profile);
+        Highway.getZHighwayLevel(chunkX, chunkZ, provider, profile);
+    }
+
+    private void fill(int chunkX, int chunkZ, LostChunkCharacteristics[] result) {
+        result[(chunkZ - minChunkZ) * sizeX + (chunkX - minChunkX)] = BuildingInfo.getChunkCharacteristics(chunkX, chunkZ, provider);
+    }
+
+    /**
+     * A part of the rectangle. Without a result array this is the first pass
+     */
+    private class Task extends RecursiveAction {
+        private final int x;
+        private final int z;
+        private final int w;
+        private final int h;
+        private final LostChunkCharacteristics[] result;
+
+        private Task(int x, int z, int w, int h, LostChunkCharacteristics[] result) {
+            this.x = x;
+            this.z = z;
+            this.w = w;
+            this.h = h;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            if (w * h <= THRESHOLD) {
+                for (int cz = z ; cz < z + h ; cz++) {
+                    for (int cx = x ; cx < x + w ; cx++) {
+                        if (result == null) {
+                            prepare(cx, cz);
+                        } else {
+                            fill(cx, cz, result);
+                        }
+                    }
+                }
+            } else if (w >= h) {
+                int half = w / 2;
+                invokeAll(new Task(x, z, half, h, result), new Task(x + half, z, w - half, h, result));
+            } else {
+                int half = h / 2;
+                invokeAll(new Task(x, z, w, half, result), new Task(x, z + half, w, h - half, result));
+            }
+        }
+    }
+}
@@ -1,35 +1,30 @@
 package mcjty.lostcities.worldgen.lost;
 
-import mcjty.lostcities.varia.ChunkCoord;
+import mcjty.lostcities.varia.ChunkMap;
+import mcjty.lostcities.worldgen.GenerationCaches;
 import mcjty.lostcities.worldgen.IDimensionInfo;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.biome.Biome;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public class BiomeInfo {
 
-    private static final Map<ChunkCoord, BiomeInfo> biomeInfoMap = new HashMap<>();
+    private static final GenerationCaches.Key<ChunkMap<BiomeInfo>> BIOME_INFO = new GenerationCaches.Key<>("biomeInfo", p -> new ChunkMap<>());
 
     private Biome mainBiome;
 
-    public static void cleanCache() {
-        biomeInfoMap.clear();
-    }
-
-    public static BiomeInfo getBiomeInfo(IDimensionInfo provider, ChunkCoord coord) {
-        if (!biomeInfoMap.containsKey(coord)) {
+    public static BiomeInfo getBiomeInfo(IDimensionInfo provider, int chunkX, int chunkZ) {
+        ChunkMap<BiomeInfo> map = provider.getCaches().get(BIOME_INFO);
+        BiomeInfo cached = map.get(chunkX, chunkZ);
+        if (cached == null) {
             BiomeInfo info = new BiomeInfo();
-            int chunkX = coord.getChunkX();
-            int chunkZ = coord.getChunkZ();
             info.mainBiome = provider.getBiome(new BlockPos((chunkX << 4) + 8, 65, (chunkZ << 4) + 8));
             if (info.mainBiome == null) {
                 System.out.println("BiomeInfo.getBiomeInfo");
             }
-            biomeInfoMap.put(coord, info);
+            map.put(chunkX, chunkZ, info);
+            return info;
         }
-        return biomeInfoMap.get(coord);
+        return cached;
     }
 
     public Biome getMainBiome() {
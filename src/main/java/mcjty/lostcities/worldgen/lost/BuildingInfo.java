@@ -2,10 +2,14 @@ package mcjty.lostcities.worldgen.lost;
 
 import mcjty.lostcities.api.*;
 import mcjty.lostcities.config.LostCityProfile;
+import mcjty.lostcities.setup.Config;
+import mcjty.lostcities.varia.ChunkCache;
 import mcjty.lostcities.varia.ChunkCoord;
+import mcjty.lostcities.varia.ChunkIntMap;
 import mcjty.lostcities.varia.Counter;
 import mcjty.lostcities.varia.QualityRandom;
 import mcjty.lostcities.worldgen.ChunkHeightmap;
+import mcjty.lostcities.worldgen.GenerationCaches;
 import mcjty.lostcities.worldgen.IDimensionInfo;
 import mcjty.lostcities.worldgen.LostCityTerrainFeature;
 import mcjty.lostcities.worldgen.lost.cityassets.*;
@@ -69,10 +73,6 @@ public class BuildingInfo implements ILostChunkInfo {
     public final Block doorBlock;
 
     // Transient info that is calculated on demand
-    private BuildingInfo xmin = null;
-    private BuildingInfo xmax = null;
-    private BuildingInfo zmin = null;
-    private BuildingInfo zmax = null;
     private DamageArea damageArea = null;
     private Palette palette = null;
     private CompiledPalette compiledPalette = null;
@@ -94,10 +94,10 @@ public class BuildingInfo implements ILostChunkInfo {
     private Integer[] desiredTerrainCorrectionHeights = null;
     private Integer[] desiredMaxHeight1 = null;
 
-    // A list of todo's
-    private final List<BlockPos> lightingUpdateTodo = new ArrayList<>();
+    // A list of todo's. Lighting and sapling todo's can be added while generating a neighbouring chunk (on another thread)
+    private final List<BlockPos> lightingUpdateTodo = Collections.synchronizedList(new ArrayList<>());
     private final List<BlockPos> torchTodo = new ArrayList<>();
-    private final List<BlockPos> saplingTodo = new ArrayList<>();
+    private final List<BlockPos> saplingTodo = Collections.synchronizedList(new ArrayList<>());
 
     public static class ConditionTodo {
         private final String condition;
@@ -127,9 +127,11 @@ public class BuildingInfo implements ILostChunkInfo {
         }
     }
 
-    // BuildingInfo cache
-    private static final Map<ChunkCoord, BuildingInfo> buildingInfoMap = new HashMap<>();
-    private static final Map<ChunkCoord, LostChunkCharacteristics> cityInfoMap = new HashMap<>();
+    // BuildingInfo cache (per dimension info). Chunks that still have saplings to place are kept
+    private static final GenerationCaches.Key<ChunkCache<BuildingInfo>> BUILDING_INFO = new GenerationCaches.Key<>("buildingInfo",
+            p -> new ChunkCache<>(Config.BUILDING_INFO_CACHE_SIZE.get(), info -> !info.saplingTodo.isEmpty()));
+    private static final GenerationCaches.Key<ChunkCache<LostChunkCharacteristics>> CHARACTERISTICS = new GenerationCaches.Key<>("characteristics",
+            p -> new ChunkCache<>(Config.BUILDING_INFO_CACHE_SIZE.get()));
 
     public void addSaplingTodo(BlockPos pos) {
         saplingTodo.add(pos);
@@ -143,6 +145,18 @@ public class BuildingInfo implements ILostChunkInfo {
         saplingTodo.clear();
     }
 
+    /**
+     * Return the current sapling todo's and clear them. Todo's that are added by another thread
+     * in the mean time are kept for the next time.
+     */
+    public List<BlockPos> takeSaplingTodo() {
+        synchronized (saplingTodo) {
+            List<BlockPos> todo = new ArrayList<>(saplingTodo);
+            saplingTodo.clear();
+            return todo;
+        }
+    }
+
     public void addTorchTodo(BlockPos index) {
         torchTodo.add(index);
     }
@@ -169,7 +183,7 @@ public class BuildingInfo implements ILostChunkInfo {
 
     public CompiledPalette getCompiledPalette() {
         if (compiledPalette == null) {
-            compiledPalette = new CompiledPalette(palette);
+            compiledPalette = CompiledPalette.getCompiledPalette(palette);
         }
         return compiledPalette;
     }
@@ -231,31 +245,19 @@ public class BuildingInfo implements ILostChunkInfo {
     }
 
     public BuildingInfo getXmin() {
-        if (xmin == null) {
-            xmin = getBuildingInfo(chunkX - 1, chunkZ, provider);
-        }
-        return xmin;
+        return getBuildingInfo(chunkX - 1, chunkZ, provider);
     }
 
     public BuildingInfo getXmax() {
-        if (xmax == null) {
-            xmax = getBuildingInfo(chunkX + 1, chunkZ, provider);
-        }
-        return xmax;
+        return getBuildingInfo(chunkX + 1, chunkZ, provider);
     }
 
     public BuildingInfo getZmin() {
-        if (zmin == null) {
-            zmin = getBuildingInfo(chunkX, chunkZ - 1, provider);
-        }
-        return zmin;
+        return getBuildingInfo(chunkX, chunkZ - 1, provider);
     }
 
     public BuildingInfo getZmax() {
-        if (zmax == null) {
-            zmax = getBuildingInfo(chunkX, chunkZ + 1, provider);
-        }
-        return zmax;
+        return getBuildingInfo(chunkX, chunkZ + 1, provider);
     }
 
     public int getMaxHeight() {
@@ -327,11 +329,15 @@ public class BuildingInfo implements ILostChunkInfo {
         return b;
     }
 
-    public static synchronized LostChunkCharacteristics getChunkCharacteristics(int chunkX, int chunkZ, IDimensionInfo provider) {
-        RegistryKey<World> type = provider.getType();
-        ChunkCoord key = new ChunkCoord(type, chunkX, chunkZ);
-        if (cityInfoMap.containsKey(key)) {
-            return cityInfoMap.get(key);
+    /**
+     * This is not synchronized. If two threads calculate the same chunk at the same time the result is
+     * identical (it only depends on the seed) and the first one to be stored wins.
+     */
+    public static LostChunkCharacteristics getChunkCharacteristics(int chunkX, int chunkZ, IDimensionInfo provider) {
+        ChunkCache<LostChunkCharacteristics> cache = provider.getCaches().get(CHARACTERISTICS);
+        LostChunkCharacteristics cached = cache.get(chunkX, chunkZ);
+        if (cached != null) {
+            return cached;
         } else {
             LostCityProfile profile = getProfile(chunkX, chunkZ, provider);
             LostChunkCharacteristics characteristics = new LostChunkCharacteristics();
@@ -417,15 +423,25 @@ public class BuildingInfo implements ILostChunkInfo {
 
             // @todo 1.14
 
-            cityInfoMap.put(key, characteristics);
-            return characteristics;
+            return cache.putIfAbsent(chunkX, chunkZ, characteristics);
         }
     }
 
     /**
-     * Don't use the cache as we're busy building the cache.
+     * Don't use the cache as we're busy building the cache. This uses the CityInfoMemo instead
      */
     public static boolean isCityRaw(int chunkX, int chunkZ, IDimensionInfo provider, LostCityProfile profile) {
+        CityInfoMemo memo = CityInfoMemo.get(provider);
+        int city = memo.getCity(chunkX, chunkZ, profile);
+        if (city != ChunkIntMap.NO_VALUE) {
+            return city != 0;
+        }
+        boolean isCity = calculateCityRaw(chunkX, chunkZ, provider, profile);
+        memo.setCity(chunkX, chunkZ, profile, isCity);
+        return isCity;
+    }
+
+    private static boolean calculateCityRaw(int chunkX, int chunkZ, IDimensionInfo provider, LostCityProfile profile) {
         if (isVoidChunk(chunkX, chunkZ, provider)) {
             // If we have a void chunk then no city here
             return false;
@@ -625,19 +641,20 @@ public class BuildingInfo implements ILostChunkInfo {
         }
     }
 
-    public static void cleanCache() {
-        buildingInfoMap.clear();
-        cityInfoMap.clear();
+    public static String getCacheStatistics(IDimensionInfo provider) {
+        return "buildingInfo: " + provider.getCaches().get(BUILDING_INFO) + ", characteristics: " + provider.getCaches().get(CHARACTERISTICS);
     }
 
-    public static synchronized  BuildingInfo getBuildingInfo(int chunkX, int chunkZ, IDimensionInfo provider) {
-        ChunkCoord key = new ChunkCoord(provider.getType(), chunkX, chunkZ);
-        if (buildingInfoMap.containsKey(key)) {
-            return buildingInfoMap.get(key);
+    public static BuildingInfo getBuildingInfo(int chunkX, int chunkZ, IDimensionInfo provider) {
+        ChunkCache<BuildingInfo> cache = provider.getCaches().get(BUILDING_INFO);
+        BuildingInfo info = cache.get(chunkX, chunkZ);
+        if (info != null) {
+            return info;
         }
-        BuildingInfo info = new BuildingInfo(chunkX, chunkZ, provider);
-        buildingInfoMap.put(key, info);
-        return info;
+        // Calculating a new info will look up neighbours (which may again look up theirs) so
+        // this must happen outside any lock
+        info = new BuildingInfo(chunkX, chunkZ, provider);
+        return cache.putIfAbsent(chunkX, chunkZ, info);
     }
 
     /**
@@ -946,9 +963,20 @@ public class BuildingInfo implements ILostChunkInfo {
 
 
     /**
-     * This function does not use the cache. So safe to use when the cache is building
+     * This function does not use the cache. So safe to use when the cache is building. The result is
+     * remembered in the CityInfoMemo
      */
     public static int getCityLevel(int chunkX, int chunkZ, IDimensionInfo provider) {
+        CityInfoMemo memo = CityInfoMemo.get(provider);
+        int level = memo.getCityLevel(chunkX, chunkZ);
+        if (level == ChunkIntMap.NO_VALUE) {
+            level = calculateCityLevel(chunkX, chunkZ, provider);
+            memo.setCityLevel(chunkX, chunkZ, level);
+        }
+        return level;
+    }
+
+    private static int calculateCityLevel(int chunkX, int chunkZ, IDimensionInfo provider) {
         if (provider.getProfile().isSpace()) {
             return getCityLevelSpace(chunkX, chunkZ, provider);
         } else if (provider.getProfile().isFloating()) {
@@ -1284,7 +1312,7 @@ public class BuildingInfo implements ILostChunkInfo {
         if (isOcean != null) {
             return isOcean;
         }
-        isOcean = BiomeInfo.getBiomeInfo(provider, new ChunkCoord(provider.getType(), chunkX, chunkZ)).getMainBiome().getBiomeCategory() == Biome.Category.OCEAN;
+        isOcean = BiomeInfo.getBiomeInfo(provider, chunkX, chunkZ).getMainBiome().getBiomeCategory() == Biome.Category.OCEAN;
         return isOcean;
     }
 
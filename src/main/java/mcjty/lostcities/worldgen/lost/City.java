@@ -2,7 +2,10 @@ package mcjty.lostcities.worldgen.lost;
 
 import mcjty.lostcities.config.LostCityProfile;
 import mcjty.lostcities.varia.ChunkCoord;
+import mcjty.lostcities.varia.ChunkIntMap;
+import mcjty.lostcities.varia.ChunkMap;
 import mcjty.lostcities.varia.Tools;
+import mcjty.lostcities.worldgen.GenerationCaches;
 import mcjty.lostcities.worldgen.IDimensionInfo;
 import mcjty.lostcities.worldgen.lost.cityassets.AssetRegistries;
 import mcjty.lostcities.worldgen.lost.cityassets.CityStyle;
@@ -20,9 +23,16 @@ import java.util.*;
  */
 public class City {
 
-    private static Map<ChunkCoord, PredefinedCity> predefinedCityMap = null;
-    private static Map<ChunkCoord, PredefinedCity.PredefinedBuilding> predefinedBuildingMap = null;
-    private static Map<ChunkCoord, PredefinedCity.PredefinedStreet> predefinedStreetMap = null;
+    // These are built on first use by whatever worldgen thread gets there first. A map is only
+    // published after it is complete
+    private static volatile Map<ChunkCoord, PredefinedCity> predefinedCityMap = null;
+    private static volatile Map<ChunkCoord, PredefinedCity.PredefinedBuilding> predefinedBuildingMap = null;
+    private static volatile Map<ChunkCoord, PredefinedCity.PredefinedStreet> predefinedStreetMap = null;
+
+    // Regions of 32x32 chunks that know where the city centers are. The map is keyed on region coordinates
+    private static final int REGION_SHIFT = 5;
+    private static final int REGION_SIZE = 1 << REGION_SHIFT;
+    private static final GenerationCaches.Key<ChunkMap<CityCenters>> CITY_CENTERS = new GenerationCaches.Key<>("cityCenters", p -> new ChunkMap<>());
 
     public static void cleanCache() {
         predefinedCityMap = null;
@@ -30,49 +40,91 @@ public class City {
         predefinedStreetMap = null;
     }
 
+    /**
+     * All city centers (and their radius) in a region. For every chunk x in the region the centers are
+     * sorted on chunk z so that walking over them gives the same order as looping over x and then z
+     */
+    private static class CityCenters {
+        private static final int[] NO_CENTERS = new int[0];
+        private static final float[] NO_RADIUS = new float[0];
+
+        private final int[][] centerZ = new int[REGION_SIZE][];
+        private final float[][] radius = new float[REGION_SIZE][];
+
+        CityCenters(int regionX, int regionZ, IDimensionInfo provider) {
+            int[] zs = new int[REGION_SIZE];
+            float[] rs = new float[REGION_SIZE];
+            for (int x = 0 ; x < REGION_SIZE ; x++) {
+                int cx = (regionX << REGION_SHIFT) + x;
+                int cnt = 0;
+                for (int z = 0 ; z < REGION_SIZE ; z++) {
+                    int cz = (regionZ << REGION_SHIFT) + z;
+                    if (isCityCenter(cx, cz, provider)) {
+                        zs[cnt] = cz;
+                        rs[cnt] = getCityRadius(cx, cz, provider);
+                        cnt++;
+                    }
+                }
+                centerZ[x] = cnt == 0 ? NO_CENTERS : Arrays.copyOf(zs, cnt);
+                radius[x] = cnt == 0 ? NO_RADIUS : Arrays.copyOf(rs, cnt);
+            }
+        }
+    }
+
+    private static CityCenters getCityCenters(int regionX, int regionZ, IDimensionInfo provider) {
+        ChunkMap<CityCenters> map = provider.getCaches().get(CITY_CENTERS);
+        return map.computeIfAbsent(regionX, regionZ, () -> new CityCenters(regionX, regionZ, provider));
+    }
+
     public static PredefinedCity getPredefinedCity(int chunkX, int chunkZ, RegistryKey<World> type) {
-        if (predefinedCityMap == null) {
-            predefinedCityMap = new HashMap<>();
+        Map<ChunkCoord, PredefinedCity> map = predefinedCityMap;
+        if (map == null) {
+            map = new HashMap<>();
             for (PredefinedCity city : AssetRegistries.PREDEFINED_CITIES.getIterable()) {
-                predefinedCityMap.put(new ChunkCoord(city.getDimension(), city.getChunkX(), city.getChunkZ()), city);
+                map.put(new ChunkCoord(city.getDimension(), city.getChunkX(), city.getChunkZ()), city);
             }
+            predefinedCityMap = map;
         }
-        if (predefinedCityMap.isEmpty()) {
+        if (map.isEmpty()) {
             return null;
         }
-        return predefinedCityMap.get(new ChunkCoord(type, chunkX, chunkZ));
+        return map.get(new ChunkCoord(type, chunkX, chunkZ));
     }
 
     public static PredefinedCity.PredefinedBuilding getPredefinedBuilding(int chunkX, int chunkZ, RegistryKey<World> type) {
-        if (predefinedBuildingMap == null) {
-            predefinedBuildingMap = new HashMap<>();
+        Map<ChunkCoord, PredefinedCity.PredefinedBuilding> map = predefinedBuildingMap;
+        if (map == null) {
+            map = new HashMap<>();
             for (PredefinedCity city : AssetRegistries.PREDEFINED_CITIES.getIterable()) {
                 for (PredefinedCity.PredefinedBuilding building : city.getPredefinedBuildings()) {
-                    predefinedBuildingMap.put(new ChunkCoord(city.getDimension(),
+                    map.put(new ChunkCoord(city.getDimension(),
                             city.getChunkX() + building.getRelChunkX(), city.getChunkZ() + building.getRelChunkZ()), building);
                 }
             }
+            predefinedBuildingMap = map;
         }
-        if (predefinedBuildingMap.isEmpty()) {
+        if (map.isEmpty()) {
             return null;
         }
-        return predefinedBuildingMap.get(new ChunkCoord(type, chunkX, chunkZ));
+        return map.get(new ChunkCoord(type, chunkX, chunkZ));
     }
 
     public static PredefinedCity.PredefinedStreet getPredefinedStreet(int chunkX, int chunkZ, RegistryKey<World> type) {
-        if (predefinedStreetMap == null) {
-            predefinedStreetMap = new HashMap<>();
+        Map<ChunkCoord, PredefinedCity.PredefinedStreet> map = predefinedStreetMap;
+        if (map == null) {
+            map = new HashMap<>();
             for (PredefinedCity city : AssetRegistries.PREDEFINED_CITIES.getIterable()) {
                 for (PredefinedCity.PredefinedStreet street : city.getPredefinedStreets()) {
-                    predefinedStreetMap.put(new ChunkCoord(city.getDimension(),
+                    map.put(new ChunkCoord(city.getDimension(),
                             city.getChunkX() + street.getRelChunkX(), city.getChunkZ() + street.getRelChunkZ()), street);
                 }
             }
+            predefinedStreetMap = map;
         }
-        if (predefinedStreetMap.isEmpty()) {
+        if (map.isEmpty()) {
             return null;
         }
-        return predefinedStreetMap.get(new ChunkCoord(type, chunkX, chunkZ));
+        return map.get(new ChunkCoord(type, chunkX, chunkZ));
     }
 
 
@@ -174,6 +226,17 @@ public class City {
     }
 
     public static float getCityFactor(int chunkX, int chunkZ, IDimensionInfo provider, LostCityProfile profile) {
+        CityInfoMemo memo = CityInfoMemo.get(provider);
+        int bits = memo.getCityFactorBits(chunkX, chunkZ, profile);
+        if (bits != ChunkIntMap.NO_VALUE) {
+            return Float.intBitsToFloat(bits);
+        }
+        float factor = calculateCityFactor(chunkX, chunkZ, provider, profile);
+        memo.setCityFactor(chunkX, chunkZ, profile, factor);
+        return factor;
+    }
+
+    private static float calculateCityFactor(int chunkX, int chunkZ, IDimensionInfo provider, LostCityProfile profile) {
         RegistryKey<World> type = provider.getType();
         // If we have a predefined building here we force a high city factor
 
@@ -213,16 +276,29 @@ public class City {
 
         float factor = 0;
         int offset = (profile.CITY_MAXRADIUS+15) / 16;
+        int minZ = chunkZ - offset;
+        int maxZ = chunkZ + offset;
+        // Only look at the city centers in the square around this chunk. They are visited in the
+        // same x/z order as a loop over every chunk would so the factor is added up in the same order
         for (int cx = chunkX - offset; cx <= chunkX + offset; cx++) {
-            for (int cz = chunkZ - offset; cz <= chunkZ + offset; cz++) {
-                LostCityProfile pro = BuildingInfo.getProfile(cx, cz, provider);
-                // Only count cities that are in the same 'profile' as this one
-                if (pro == profile && isCityCenter(cx, cz, provider)) {
-                    float radius = getCityRadius(cx, cz, provider);
-                    float sqdist = (cx * 16 - chunkX * 16) * (cx * 16 - chunkX * 16) + (cz * 16 - chunkZ * 16) * (cz * 16 - chunkZ * 16);
-                    if (sqdist < radius * radius) {
-                        float dist = (float) Math.sqrt(sqdist);
-                        factor += (radius - dist) / radius;
+            int localX = cx & (REGION_SIZE - 1);
+            for (int regionZ = minZ >> REGION_SHIFT; regionZ <= maxZ >> REGION_SHIFT; regionZ++) {
+                CityCenters centers = getCityCenters(cx >> REGION_SHIFT, regionZ, provider);
+                int[] centerZ = centers.centerZ[localX];
+                for (int i = 0 ; i < centerZ.length ; i++) {
+                    int cz = centerZ[i];
+                    if (cz < minZ || cz > maxZ) {
+                        continue;
+                    }
+                    LostCityProfile pro = BuildingInfo.getProfile(cx, cz, provider);
+                    // Only count cities that are in the same 'profile' as this one
+                    if (pro == profile) {
+                        float radius = centers.radius[localX][i];
+                        float sqdist = (cx * 16 - chunkX * 16) * (cx * 16 - chunkX * 16) + (cz * 16 - chunkZ * 16) * (cz * 16 - chunkZ * 16);
+                        if (sqdist < radius * radius) {
+                            float dist = (float) Math.sqrt(sqdist);
+                            factor += (radius - dist) / radius;
+                        }
                     }
                 }
             }
@@ -231,7 +307,7 @@ public class City {
         // @todo 1.14: do we need this?
 
         float foundFactor = profile.CITY_DEFAULT_BIOME_FACTOR;
-        Biome biome = BiomeInfo.getBiomeInfo(provider, new ChunkCoord(type, chunkX, chunkZ)).getMainBiome();
+        Biome biome = BiomeInfo.getBiomeInfo(provider, chunkX, chunkZ).getMainBiome();
         Map<ResourceLocation, Float> map = profile.getBiomeFactorMap();
         ResourceLocation object = Tools.getBiomeId(biome);
         Float f;
@@ -0,0 +1,123 @@
+package mcjty.lostcities.worldgen.lost;
+
+import mcjty.lostcities.config.LostCityProfile;
+import mcjty.lostcities.setup.Config;
+import mcjty.lostcities.varia.ChunkCache;
+import mcjty.lostcities.varia.ChunkIntMap;
+import mcjty.lostcities.worldgen.GenerationCaches;
+import mcjty.lostcities.worldgen.IDimensionInfo;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the raw city information of a chunk: if it is a city, the city factor and the city level.
+ * Highway, Railway and BuildingInfo ask this for the same chunks over and over while the BuildingInfo
+ * cache is still being built. This memo doesn't depend on that cache. Values are calculated outside
+ * any lock (the calculation may ask for other chunks). The calculation is deterministic so it doesn't
+ * matter if two threads happen to store the same value.
+ * The city flag and city factor depend on the profile that is asked for (in space worlds this can
+ * also be the outside profile) so these are kept per profile. There is one memo per dimension info.
+ * Like the BuildingInfo cache the memo is bounded: the least recently used chunks are forgotten and
+ * calculated again when they are needed
+ */
+public class CityInfoMemo {
+
+    private static final GenerationCaches.Key<CityInfoMemo> MEMO = new GenerationCaches.Key<>("cityInfoMemo", p -> new CityInfoMemo());
+
+    private final LongAdder cityHits = new LongAdder();
+    private final LongAdder cityMisses = new LongAdder();
+    private final LongAdder factorHits = new LongAdder();
+    private final LongAdder factorMisses = new LongAdder();
+    private final LongAdder levelHits = new LongAdder();
+    private final LongAdder levelMisses = new LongAdder();
+
+    private final Map<LostCityProfile, ChunkCache<Entry>> perProfile = new ConcurrentHashMap<>();  // City flag and city factor
+    private final ChunkCache<Entry> levels = new ChunkCache<>(Config.CITY_INFO_CACHE_SIZE.get());   // City level
+
+    // The values of a chunk that are known. Unknown values are ChunkIntMap.NO_VALUE
+    private static class Entry {
+        private volatile int city = ChunkIntMap.NO_VALUE;
+        private volatile int factorBits = ChunkIntMap.NO_VALUE;
+        private volatile int level = ChunkIntMap.NO_VALUE;
+    }
+
+    public static CityInfoMemo get(IDimensionInfo provider) {
+        return provider.getCaches().get(MEMO);
+    }
+
+    public static String getCacheStatistics(IDimensionInfo provider) {
+        CityInfoMemo memo = get(provider);
+        long evictions = memo.levels.getEvictions();
+        for (ChunkCache<Entry> cache : memo.perProfile.values()) {
+            evictions += cache.getEvictions();
+        }
+        return "chunks=" + memo.levels.size() + "/" + memo.levels.getCapacity() + ", evictions=" + evictions
+                + ", isCity: " + getSaved(memo.cityHits, memo.cityMisses)
+                + ", cityFactor: " + getSaved(memo.factorHits, memo.factorMisses)
+                + ", cityLevel: " + getSaved(memo.levelHits, memo.levelMisses);
+    }
+
+    private static String getSaved(LongAdder hits, LongAdder misses) {
+        long h = hits.sum();
+        return "calculated=" + misses.sum() + ", saved=" + h;
+    }
+
+    private ChunkCache<Entry> getProfileCache(LostCityProfile profile) {
+        return perProfile.computeIfAbsent(profile, p -> new ChunkCache<>(Config.CITY_INFO_CACHE_SIZE.get()));
+    }
+
+    private static Entry getEntry(ChunkCache<Entry> cache, int chunkX, int chunkZ) {
+        Entry entry = cache.get(chunkX, chunkZ);
+        if (entry == null) {
+            entry = cache.putIfAbsent(chunkX, chunkZ, new Entry());
+        }
+        return entry;
+    }
+
+    /**
+     * Return 1 or 0 if the city flag of this chunk is known. Otherwise ChunkIntMap.NO_VALUE
+     */
+    public int getCity(int chunkX, int chunkZ, LostCityProfile profile) {
+        Entry entry = getProfileCache(profile).get(chunkX, chunkZ);
+        return count(entry == null ? ChunkIntMap.NO_VALUE : entry.city, cityHits, cityMisses);
+    }
+
+    public void setCity(int chunkX, int chunkZ, LostCityProfile profile, boolean city) {
+        getEntry(getProfileCache(profile), chunkX, chunkZ).city = city ? 1 : 0;
+    }
+
+    /**
+     * Return the bits of the city factor (Float.floatToRawIntBits) or ChunkIntMap.NO_VALUE if it is
+     * not known. NO_VALUE is the bit pattern of -0.0 which the city factor never is
+     */
+    public int getCityFactorBits(int chunkX, int chunkZ, LostCityProfile profile) {
+        Entry entry = getProfileCache(profile).get(chunkX, chunkZ);
+        return count(entry == null ? ChunkIntMap.NO_VALUE : entry.factorBits, factorHits, factorMisses);
+    }
+
+    public void setCityFactor(int chunkX, int chunkZ, LostCityProfile profile, float factor) {
+        getEntry(getProfileCache(profile), chunkX, chunkZ).factorBits = Float.floatToRawIntBits(factor);
+    }
+
+    /**
+     * Return the city level of this chunk or ChunkIntMap.NO_VALUE if it is not known
+     */
+    public int getCityLevel(int chunkX, int chunkZ) {
+        Entry entry = levels.get(chunkX, chunkZ);
+        return count(entry == null ? ChunkIntMap.NO_VALUE : entry.level, levelHits, levelMisses);
+    }
+
+    public void setCityLevel(int chunkX, int chunkZ, int level) {
+        getEntry(levels, chunkX, chunkZ).level = level;
+    }
+    private static int count(int value, LongAdder hits, LongAdder misses) {
+        if (value == ChunkIntMap.NO_VALUE) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+}
@@ -4,7 +4,9 @@ import mcjty.lostcities.api.ILostSphere;
 import mcjty.lostcities.config.LostCityProfile;
 import mcjty.lostcities.setup.ModSetup;
 import mcjty.lostcities.varia.ChunkCoord;
+import mcjty.lostcities.varia.ChunkMap;
 import mcjty.lostcities.worldgen.BiomeTranslator;
+import mcjty.lostcities.worldgen.GenerationCaches;
 import mcjty.lostcities.worldgen.IDimensionInfo;
 import mcjty.lostcities.worldgen.lost.cityassets.AssetRegistries;
 import mcjty.lostcities.worldgen.lost.cityassets.CityStyle;
@@ -25,7 +27,7 @@ import java.util.*;
 
 public class CitySphere implements ILostSphere {
 
-    private static final Map<ChunkCoord, CitySphere> citySphereCache = new HashMap<>();
+    private static final GenerationCaches.Key<ChunkMap<CitySphere>> CITY_SPHERES = new GenerationCaches.Key<>("citySpheres", p -> new ChunkMap<>());
 
     public static final CitySphere EMPTY = new CitySphere(new ChunkCoord(World.OVERWORLD, 0, 0), 0.0f, new BlockPos(0, 0, 0), false);
 
@@ -158,10 +160,6 @@ public class CitySphere implements ILostSphere {
         return sideBlock;
     }
 
-    public static void cleanCache() {
-        citySphereCache.clear();
-    }
-
     /**
      * Return true if there is a horizontal monorail here. This is the case if this chunk is on a city center multiple
      * (i.e. multiple of 16) and if there are cities left and right that both want a monorail in the correct direction
@@ -416,14 +414,15 @@ public class CitySphere implements ILostSphere {
      */
     @Nonnull
     public static CitySphere getCitySphere(int chunkX, int chunkZ, IDimensionInfo provider) {
-        ChunkCoord coord = new ChunkCoord(provider.getType(), chunkX, chunkZ);
-        if (!citySphereCache.containsKey(coord)) {
+        ChunkMap<CitySphere> cache = provider.getCaches().get(CITY_SPHERES);
+        CitySphere cached = cache.get(chunkX, chunkZ);
+        if (cached == null) {
             for (PredefinedSphere predef : AssetRegistries.PREDEFINED_SPHERES.getIterable()) {
                 if (predef.getDimension() == provider.getType()) {
                     if (intersectChunkWithSphere(chunkX, chunkZ, predef.getRadius(), new BlockPos(predef.getCenterX(), 0, predef.getCenterZ()))) {
                         ChunkCoord center = new ChunkCoord(provider.getType(), predef.getChunkX(), predef.getChunkZ());
                         CitySphere sphere = getSphereAtCenter(center, provider, predef);
-                        updateCache(coord, sphere);
+                        updateCache(cache, chunkX, chunkZ, sphere);
                         return sphere;
                     }
                 }
@@ -438,26 +437,30 @@ public class CitySphere implements ILostSphere {
                 ChunkCoord center = new ChunkCoord(provider.getType(), cx, cz);
                 sphere = getSphereAtCenter(center, provider, null);
             }
-            updateCache(coord, sphere);
+            updateCache(cache, chunkX, chunkZ, sphere);
             return sphere;
         } else {
-            return citySphereCache.get(coord);
+            return cached;
         }
     }
 
-    private static void updateCache(ChunkCoord coord, CitySphere sphere) {
-        citySphereCache.put(coord, sphere);
+    private static void updateCache(ChunkMap<CitySphere> cache, int chunkX, int chunkZ, CitySphere sphere) {
+        cache.put(chunkX, chunkZ, sphere);
+        if (sphere == EMPTY) {
+            // Not a real sphere (its center is meaningless)
+            return;
+        }
+        // The sphere is always in the dimension that is asked for so its other chunks go in the same cache
         BlockPos centerPos = sphere.getCenterPos();
         int radius = (int) sphere.getRadius();
         if (radius < 0.0001f) {
-            citySphereCache.put(sphere.center, sphere);
+            cache.put(sphere.center.getChunkX(), sphere.center.getChunkZ(), sphere);
             return;
         }
         for (int cx = centerPos.getX() - radius-16 ; cx <= centerPos.getX() + radius+16 ; cx += 16) {
             for (int cz = centerPos.getZ() - radius-16 ; cz <= centerPos.getZ()+radius+16 ; cz += 16) {
-                ChunkCoord cc = new ChunkCoord(sphere.getCenter().getDimension(), cx >> 4, cz >> 4);
-                if (intersectChunkWithSphere(cc.getChunkX(), cc.getChunkZ(), radius, centerPos)) {
-                    citySphereCache.put(cc, sphere);
+                if (intersectChunkWithSphere(cx >> 4, cz >> 4, radius, centerPos)) {
+                    cache.put(cx >> 4, cz >> 4, sphere);
                 }
             }
         }
@@ -24,6 +24,12 @@ public class DamageArea {
     private final AxisAlignedBB chunkBox;
     private final LostCityProfile profile;
 
+    // Per subchunk (16 blocks high): the explosions that can damage a block in it, if an explosion
+    // reaches it at all and if it is completely destroyed. Filled in when the area is made
+    private final Explosion[][] subchunkExplosions = new Explosion[16][];
+    private final boolean[] subchunkReached = new boolean[16];
+    private final boolean[] subchunkDestroyed = new boolean[16];
+
     public DamageArea(int chunkX, int chunkZ, IDimensionInfo provider, BuildingInfo info) {
         this.seed = provider.getSeed();
         this.profile = info.profile;
@@ -38,28 +44,61 @@ public class DamageArea {
         int offset = (Math.max(info.profile.EXPLOSION_MAXRADIUS, info.profile.MINI_EXPLOSION_MAXRADIUS)+15) / 16;
         for (int cx = chunkX - offset; cx <= chunkX + offset; cx++) {
             for (int cz = chunkZ - offset; cz <= chunkZ + offset; cz++) {
-                if ((!info.profile.EXPLOSIONS_IN_CITIES_ONLY) || BuildingInfo.isCity(cx, cz, provider)) {
-                    Explosion explosion = getExplosionAt(cx, cz, provider);
-                    if (explosion != null) {
-                        if (intersectsWith(explosion.getCenter(), explosion.getRadius())) {
-                            Float chance = BuildingInfo.getBuildingInfo(cx, cz, provider).getChunkCharacteristics(cx, cz, provider).cityStyle.getExplosionChance();
-                            if (chance == null || rand.nextFloat() < chance) {
-                                explosions.add(explosion);
-                            }
-                        }
-                    }
-                    explosion = getMiniExplosionAt(cx, cz, provider);
-                    if (explosion != null) {
-                        if (intersectsWith(explosion.getCenter(), explosion.getRadius())) {
-                            Float chance = BuildingInfo.getBuildingInfo(cx, cz, provider).getChunkCharacteristics(cx, cz, provider).cityStyle.getExplosionChance();
-                            if (chance == null || rand.nextFloat() < chance) {
-                                explosions.add(explosion);
-                            }
-                        }
-                    }
+                ExplosionRegistry.Source source = ExplosionRegistry.getSource(cx, cz, provider, profile);
+                if (source.isAllowed()) {
+                    addExplosion(source.getExplosion(), source.getExplosionChance(), rand);
+                    addExplosion(source.getMiniExplosion(), source.getExplosionChance(), rand);
                 }
             }
         }
+
+        compileSubchunks();
+    }
+
+    private void addExplosion(Explosion explosion, Float chance, Random rand) {
+        if (explosion != null && intersectsWith(explosion.getCenter(), explosion.getRadius())) {
+            if (chance == null || rand.nextFloat() < chance) {
+                explosions.add(explosion);
+            }
+        }
+    }
+
+    private void compileSubchunks() {
+        List<Explosion> list = new ArrayList<>();
+        for (int yy = 0 ; yy < 16 ; yy++) {
+            AxisAlignedBB box = new AxisAlignedBB(chunkX * 16, yy * 16, chunkZ * 16, chunkX * 16 + 15, yy * 16 + 15, chunkZ * 16 + 15);
+            subchunkReached[yy] = hasExplosions(box);
+            subchunkDestroyed[yy] = isCompletelyDestroyed(box);
+            list.clear();
+            for (Explosion explosion : explosions) {
+                if (canDamage(explosion, chunkX * 16, yy * 16, chunkZ * 16)) {
+                    list.add(explosion);
+                }
+            }
+            subchunkExplosions[yy] = list.toArray(new Explosion[0]);
+        }
+    }
+
+    /**
+     * Return true if the explosion can damage a block in the subchunk at this position. This uses the
+     * same distance as getDamage (to the center of the explosion block) so that leaving out the
+     * explosions that can't gives exactly the same damage
+     */
+    private static boolean canDamage(Explosion explosion, int minX, int minY, int minZ) {
+        BlockPos center = explosion.getCenter();
+        double dx = distanceToRange(center.getX() + .5, minX, minX + 15);
+        double dy = distanceToRange(center.getY() + .5, minY, minY + 15);
+        double dz = distanceToRange(center.getZ() + .5, minZ, minZ + 15);
+        return dx * dx + dy * dy + dz * dz < explosion.getSqradius();
+    }
+
+    private static double distanceToRange(double v, int min, int max) {
+        if (v < min) {
+            return min - v;
+        } else if (v > max) {
+            return v - max;
+        }
+        return 0;
     }
 
     public BlockState damageBlock(BlockState b, IDimensionInfo provider, int y, float damage, CompiledPalette palette, BlockState liquidChar) {
@@ -91,28 +130,6 @@ public class DamageArea {
         return dmin <= radius * radius;
     }
 
-    private Explosion getExplosionAt(int chunkX, int chunkZ, IDimensionInfo provider) {
-        Random rand = new Random(seed + chunkZ * 295075153L + chunkX * 797003437L);
-        rand.nextFloat();
-        rand.nextFloat();
-        if (rand.nextFloat() < profile.EXPLOSION_CHANCE) {
-            return new Explosion(profile.EXPLOSION_MINRADIUS + rand.nextInt(profile.EXPLOSION_MAXRADIUS - profile.EXPLOSION_MINRADIUS),
-                    new BlockPos(chunkX * 16 + rand.nextInt(16), BuildingInfo.getBuildingInfo(chunkX, chunkZ, provider).cityLevel * 6 + profile.EXPLOSION_MINHEIGHT + rand.nextInt(profile.EXPLOSION_MAXHEIGHT - profile.EXPLOSION_MINHEIGHT), chunkZ * 16 + rand.nextInt(16)));
-        }
-        return null;
-    }
-
-    private Explosion getMiniExplosionAt(int chunkX, int chunkZ, IDimensionInfo provider) {
-        Random rand = new Random(seed + chunkZ * 1400305337L + chunkX * 573259391L);
-        rand.nextFloat();
-        rand.nextFloat();
-        if (rand.nextFloat() < profile.MINI_EXPLOSION_CHANCE) {
-            return new Explosion(profile.MINI_EXPLOSION_MINRADIUS + rand.nextInt(profile.MINI_EXPLOSION_MAXRADIUS - profile.MINI_EXPLOSION_MINRADIUS),
-                    new BlockPos(chunkX * 16 + rand.nextInt(16), BuildingInfo.getBuildingInfo(chunkX, chunkZ, provider).cityLevel * 6 + profile.MINI_EXPLOSION_MINHEIGHT + rand.nextInt(profile.MINI_EXPLOSION_MAXHEIGHT - profile.MINI_EXPLOSION_MINHEIGHT), chunkZ * 16 + rand.nextInt(16)));
-        }
-        return null;
-    }
-
     // Return true if this chunk is affected by explosions
     public boolean hasExplosions() {
         return !explosions.isEmpty();
@@ -124,7 +141,13 @@ public class DamageArea {
 
     // Return true if this subchunk (every 16 blocks) is affected by explosions
     public boolean hasExplosions(int y) {
-        AxisAlignedBB box = new AxisAlignedBB(chunkX * 16, y * 16, chunkZ * 16, chunkX * 16 + 15, y * 16 + 15, chunkZ * 16 + 15);
+        if (y >= 0 && y < 16) {
+            return subchunkReached[y];
+        }
+        return hasExplosions(new AxisAlignedBB(chunkX * 16, y * 16, chunkZ * 16, chunkX * 16 + 15, y * 16 + 15, chunkZ * 16 + 15));
+    }
+
+    private boolean hasExplosions(AxisAlignedBB box) {
         for (Explosion explosion : explosions) {
             double dmin = GeometryTools.squaredDistanceBoxPoint(box, explosion.getCenter());
             if (dmin <= explosion.getRadius() * explosion.getRadius()) {
@@ -136,7 +159,13 @@ public class DamageArea {
 
     // Return true if this subchunk is completely destroyed by an explosion
     public boolean isCompletelyDestroyed(int y) {
-        AxisAlignedBB box = new AxisAlignedBB(chunkX * 16, y * 16, chunkZ * 16, chunkX * 16 + 15, y * 16 + 15, chunkZ * 16 + 15);
+        if (y >= 0 && y < 16) {
+            return subchunkDestroyed[y];
+        }
+        return isCompletelyDestroyed(new AxisAlignedBB(chunkX * 16, y * 16, chunkZ * 16, chunkX * 16 + 15, y * 16 + 15, chunkZ * 16 + 15));
+    }
+
+    private boolean isCompletelyDestroyed(AxisAlignedBB box) {
         for (Explosion explosion : explosions) {
             double dmax = GeometryTools.maxSquaredDistanceBoxPoint(box, explosion.getCenter());
             int sqdist = explosion.getRadius() * explosion.getRadius();
@@ -188,6 +217,10 @@ public class DamageArea {
 
     // Get a number indicating how much damage this point should get. 0 Means no damage
     public float getDamage(int x, int y, int z) {
+        if ((x >> 4) == chunkX && (z >> 4) == chunkZ && y >= 0 && y < 256) {
+            // Inside this chunk only the explosions that reach this subchunk matter
+            return getDamage(subchunkExplosions[y >> 4], x, y, z);
+        }
         float damage = 0.0f;
         for (Explosion explosion : explosions) {
             double sq = explosion.getCenter().distSqr(x, y, z, true);
@@ -198,4 +231,23 @@ public class DamageArea {
         }
         return damage;
     }
+
+    private static float getDamage(Explosion[] list, int x, int y, int z) {
+        float damage = 0.0f;
+        for (Explosion explosion : list) {
+            BlockPos center = explosion.getCenter();
+            double dy = center.getY() + .5 - y;
+            double sq = dy * dy;
+            if (sq < explosion.getSqradius()) {
+                double dx = center.getX() + .5 - x;
+                double dz = center.getZ() + .5 - z;
+                sq = dx * dx + dy * dy + dz * dz;
+                if (sq < explosion.getSqradius()) {
+                    double d = Math.sqrt(sq);
+                    damage += 3.0f * (explosion.getRadius() - d) / explosion.getRadius();
+                }
+            }
+        }
+        return damage;
+    }
 }
@@ -0,0 +1,130 @@
+package mcjty.lostcities.worldgen.lost;
+
+import mcjty.lostcities.config.LostCityProfile;
+import mcjty.lostcities.setup.Config;
+import mcjty.lostcities.varia.ChunkCache;
+import mcjty.lostcities.worldgen.GenerationCaches;
+import mcjty.lostcities.worldgen.IDimensionInfo;
+import net.minecraft.util.math.BlockPos;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The explosions that start in every chunk. A damage area looks at all chunks around it that can
+ * have an explosion big enough to reach it so neighbouring chunks ask for the same explosions many
+ * times. Here they are only calculated once per chunk. Chunks are grouped in regions of 16x16 chunks
+ * and a chunk is only calculated when it is first asked for (calculating it needs the BuildingInfo of
+ * that chunk). Explosions depend on the profile so they are kept per profile. Like the other per chunk
+ * caches the regions are bounded: the least recently used regions are forgotten and calculated again
+ * when they are needed
+ */
+public class ExplosionRegistry {
+
+    private static final int REGION_SHIFT = 4;
+    private static final int REGION_SIZE = 1 << REGION_SHIFT;
+
+    private static final GenerationCaches.Key<Map<LostCityProfile, ChunkCache<Region>>> REGIONS = new GenerationCaches.Key<>("explosions", p -> new ConcurrentHashMap<>());
+
+    /**
+     * The explosions that start in a chunk
+     */
+    public static class Source {
+        private final boolean allowed;
+        private final Explosion explosion;
+        private final Explosion miniExplosion;
+        private final Float explosionChance;
+
+        private Source(boolean allowed, Explosion explosion, Explosion miniExplosion, Float explosionChance) {
+            this.allowed = allowed;
+            this.explosion = explosion;
+            this.miniExplosion = miniExplosion;
+            this.explosionChance = explosionChance;
+        }
+
+        // False if explosions are only allowed in cities and this is not a city
+        public boolean isAllowed() {
+            return allowed;
+        }
+
+        @Nullable
+        public Explosion getExplosion() {
+            return explosion;
+        }
+
+        @Nullable
+        public Explosion getMiniExplosion() {
+            return miniExplosion;
+        }
+
+        // The explosion chance of the city style of this chunk. Only set if there is an explosion
+        @Nullable
+        public Float getExplosionChance() {
+            return explosionChance;
+        }
+    }
+
+    // Most chunks have no explosion. They all share these sources
+    private static final Source NOT_ALLOWED = new Source(false, null, null, null);
+    private static final Source NONE = new Source(true, null, null, null);
+
+    private static class Region {
+        // Filled in when asked for. Sources are immutable so a race only calculates the same source twice
+        private final Source[] sources = new Source[REGION_SIZE * REGION_SIZE];
+    }
+
+    public static Source getSource(int chunkX, int chunkZ, IDimensionInfo provider, LostCityProfile profile) {
+        ChunkCache<Region> cache = provider.getCaches().get(REGIONS).computeIfAbsent(profile,
+                p -> new ChunkCache<>(Math.max(1, Config.CITY_INFO_CACHE_SIZE.get() / (REGION_SIZE * REGION_SIZE))));
+        int regionX = chunkX >> REGION_SHIFT;
+        int regionZ = chunkZ >> REGION_SHIFT;
+        Region region = cache.get(regionX, regionZ);
+        if (region == null) {
+            region = cache.putIfAbsent(regionX, regionZ, new Region());
+        }
+        int index = ((chunkX & (REGION_SIZE - 1)) << REGION_SHIFT) + (chunkZ & (REGION_SIZE - 1));
+        Source source = region.sources[index];
+        if (source == null) {
+            source = calculateSource(chunkX, chunkZ, provider, profile);
+            region.sources[index] = source;
+        }
+        return source;
+    }
+
+    private static Source calculateSource(int chunkX, int chunkZ, IDimensionInfo provider, LostCityProfile profile) {
+        if (profile.EXPLOSIONS_IN_CITIES_ONLY && !BuildingInfo.isCity(chunkX, chunkZ, provider)) {
+            return NOT_ALLOWED;
+        }
+        Explosion explosion = getExplosionAt(chunkX, chunkZ, provider, profile);
+        Explosion miniExplosion = getMiniExplosionAt(chunkX, chunkZ, provider, profile);
+        if (explosion == null && miniExplosion == null) {
+            return NONE;
+        }
+        Float chance = BuildingInfo.getChunkCharacteristics(chunkX, chunkZ, provider).cityStyle.getExplosionChance();
+        return new Source(true, explosion, miniExplosion, chance);
+    }
+
+    private static Explosion getExplosionAt(int chunkX, int chunkZ, IDimensionInfo provider, LostCityProfile profile) {
+        Random rand = new Random(provider.getSeed() + chunkZ * 295075153L + chunkX * 797003437L);
+        rand.nextFloat();
+        rand.nextFloat();
+        if (rand.nextFloat() < profile.EXPLOSION_CHANCE) {
+            return new Explosion(profile.EXPLOSION_MINRADIUS + rand.nextInt(profile.EXPLOSION_MAXRADIUS - profile.EXPLOSION_MINRADIUS),
+                    new BlockPos(chunkX * 16 + rand.nextInt(16), BuildingInfo.getBuildingInfo(chunkX, chunkZ, provider).cityLevel * 6 + profile.EXPLOSION_MINHEIGHT + rand.nextInt(profile.EXPLOSION_MAXHEIGHT - profile.EXPLOSION_MINHEIGHT), chunkZ * 16 + rand.nextInt(16)));
+        }
+        return null;
+    }
+
+    private static Explosion getMiniExplosionAt(int chunkX, int chunkZ, IDimensionInfo provider, LostCityProfile profile) {
+        Random rand = new Random(provider.getSeed() + chunkZ * 1400305337L + chunkX * 573259391L);
+        rand.nextFloat();
+        rand.nextFloat();
+        if (rand.nextFloat() < profile.MINI_EXPLOSION_CHANCE) {
+            return new Explosion(profile.MINI_EXPLOSION_MINRADIUS + rand.nextInt(profile.MINI_EXPLOSION_MAXRADIUS - profile.MINI_EXPLOSION_MINRADIUS),
+                    new BlockPos(chunkX * 16 + rand.nextInt(16), BuildingInfo.getBuildingInfo(chunkX, chunkZ, provider).cityLevel * 6 + profile.MINI_EXPLOSION_MINHEIGHT + rand.nextInt(profile.MINI_EXPLOSION_MAXHEIGHT - profile.MINI_EXPLOSION_MINHEIGHT), chunkZ * 16 + rand.nextInt(16)));
+        }
+        return null;
+    }
+}
@@ -1,39 +1,36 @@
 package mcjty.lostcities.worldgen.lost;
 
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import mcjty.lostcities.config.LostCityProfile;
-import mcjty.lostcities.varia.ChunkCoord;
+import mcjty.lostcities.varia.ChunkIntMap;
 import mcjty.lostcities.varia.PerlinNoiseGenerator14;
+import mcjty.lostcities.worldgen.GenerationCaches;
 import mcjty.lostcities.worldgen.IDimensionInfo;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.Random;
-import java.util.function.Function;
 
 public class Highway {
 
-    private static PerlinNoiseGenerator14 perlinX = null;
-    private static PerlinNoiseGenerator14 perlinZ = null;
-    private static final Map<ChunkCoord, Integer> xHighwayLevelCache = new HashMap<>();
-    private static final Map<ChunkCoord, Integer> zHighwayLevelCache = new HashMap<>();
+    private static final GenerationCaches.Key<Highways> HIGHWAYS = new GenerationCaches.Key<>("highways", p -> new Highways(p.getSeed()));
 
+    // When looking for the ends of a stretch without highway we don't look further than this
+    private static final int MAX_GAP_SEARCH = 64;
 
-    private static void makePerlin(long seed) {
-        if (perlinX == null) {
-            Random random = new Random(seed);
-            perlinX = new PerlinNoiseGenerator14(random, 4);
-        }
-        if (perlinZ == null) {
-            Random random = new Random(seed ^ 879190747L);
-            perlinZ = new PerlinNoiseGenerator14(random, 4);
-        }
-    }
 
-    public static void cleanCache() {
-        perlinX = null;
-        perlinZ = null;
-        xHighwayLevelCache.clear();
-        zHighwayLevelCache.clear();
+    /**
+     * The noise (depends on the seed) and the known highway spans of a dimension
+     */
+    private static class Highways {
+        private final PerlinNoiseGenerator14 perlinX;
+        private final PerlinNoiseGenerator14 perlinZ;
+        private final Spans xSpans = new Spans();
+        private final Spans zSpans = new Spans();
+
+        private Highways(long seed) {
+            perlinX = new PerlinNoiseGenerator14(new Random(seed), 4);
+            perlinZ = new PerlinNoiseGenerator14(new Random(seed ^ 879190747L), 4);
+        }
     }
 
     /**
@@ -41,7 +38,7 @@ public class Highway {
      * Returns 0 or 1 if there is a highway (at that city level) going through this chunk.
      */
     public static int getXHighwayLevel(int chunkX, int chunkZ, IDimensionInfo provider, LostCityProfile profile) {
-        return getHighwayLevel(provider, profile, Highway.xHighwayLevelCache, cp -> hasXHighway(cp, profile), Orientation.X, new ChunkCoord(provider.getType(), chunkX, chunkZ));
+        return getHighwayLevel(provider, profile, provider.getCaches().get(HIGHWAYS), Orientation.X, chunkX, chunkZ);
     }
 
     /**
@@ -49,98 +46,201 @@ public class Highway {
      * Returns 0 or 1 if there is a highway (at that city level) going through this chunk.
      */
     public static int getZHighwayLevel(int chunkX, int chunkZ, IDimensionInfo provider, LostCityProfile profile) {
-        return getHighwayLevel(provider, profile, Highway.zHighwayLevelCache, cp -> hasZHighway(cp, profile), Orientation.Z, new ChunkCoord(provider.getType(), chunkX, chunkZ));
+        return getHighwayLevel(provider, profile, provider.getCaches().get(HIGHWAYS), Orientation.Z, chunkX, chunkZ);
     }
 
-    private static int getHighwayLevel(IDimensionInfo provider, LostCityProfile profile, Map<ChunkCoord, Integer> cache, Function<ChunkCoord, Boolean> hasHighway, Orientation orientation, ChunkCoord cp) {
-        if (cache.containsKey(cp)) {
-            return cache.get(cp);
-        }
-
+    private static int getHighwayLevel(IDimensionInfo provider, LostCityProfile profile, Highways highways, Orientation orientation, int chunkX, int chunkZ) {
         // Highways can only occur at chunkZ that is a multiple of 8
         int mask = profile.HIGHWAY_DISTANCE_MASK;
         if (mask <= 0) {
-            cache.put(cp, -1);
             return -1;
         }
 
-        if ((cp.getCoord(orientation.getOpposite()) & mask) != 0) {
-            cache.put(cp, -1);
+        int across = orientation == Orientation.X ? chunkZ : chunkX;
+        if ((across & mask) != 0) {
             return -1;
         }
 
         // Disable highways that intersect with cityspheres
-        if (provider.getProfile().isSpace() && CitySphere.intersectsWithCitySphere(cp.getChunkX(), cp.getChunkZ(), provider)) {
-            cache.put(cp, -1);
+        if (provider.getProfile().isSpace() && CitySphere.intersectsWithCitySphere(chunkX, chunkZ, provider)) {
             return -1;
         }
 
-        makePerlin(provider.getSeed());
-        if (hasHighway.apply(cp)) {
+        int along = orientation == Orientation.X ? chunkX : chunkZ;
+        Spans spans = orientation == Orientation.X ? highways.xSpans : highways.zSpans;
+        Line line = spans.getLine(across);
+        int cached = line.get(along);
+        if (cached != ChunkIntMap.NO_VALUE) {
+            return cached;
+        }
+
+        if (hasHighway(highways, orientation, along, across, profile)) {
             // This is part of a highway. Find the left-most chunk that is still part of this highway
-            ChunkCoord lower = cp.lower(orientation);
-            while (hasHighway.apply(lower)) {
-                lower = lower.lower(orientation);
+            int lower = along - 1;
+            while (hasHighway(highways, orientation, lower, across, profile)) {
+                lower--;
             }
-            lower = lower.higher(orientation);     // This is now where the highway starts
+            lower++;     // This is now where the highway starts
 
             // Find the right-most chunk that is still part of this highway
-            ChunkCoord higher = cp.higher(orientation);
-            while (hasHighway.apply(higher)) {
-                higher = higher.higher(orientation);
+            int higher = along + 1;
+            while (hasHighway(highways, orientation, higher, across, profile)) {
+                higher++;
             }
-            higher = higher.lower(orientation);     // This is now where the highway ends
+            higher--;     // This is now where the highway ends
+
+            int lowerX = orientation == Orientation.X ? lower : across;
+            int lowerZ = orientation == Orientation.X ? across : lower;
+            int higherX = orientation == Orientation.X ? higher : across;
+            int higherZ = orientation == Orientation.X ? across : higher;
 
             int level = -1;
-            if (higher.getCoord(orientation)-lower.getCoord(orientation) >= 5) {
+            if (higher - lower >= 5) {
                 boolean valid;
                 if (profile.HIGHWAY_REQUIRES_TWO_CITIES) {
-                    valid = BuildingInfo.isCityRaw(lower.getChunkX(), lower.getChunkZ(), provider, profile) && BuildingInfo.isCityRaw(higher.getChunkX(), higher.getChunkZ(), provider, profile);
+                    valid = BuildingInfo.isCityRaw(lowerX, lowerZ, provider, profile) && BuildingInfo.isCityRaw(higherX, higherZ, provider, profile);
                 } else {
-                    valid = BuildingInfo.isCityRaw(lower.getChunkX(), lower.getChunkZ(), provider, profile) || BuildingInfo.isCityRaw(higher.getChunkX(), higher.getChunkZ(), provider, profile);
+                    valid = BuildingInfo.isCityRaw(lowerX, lowerZ, provider, profile) || BuildingInfo.isCityRaw(higherX, higherZ, provider, profile);
                 }
                 if (valid) {
                     // We have at least one city. Valid highway:
                     switch (profile.HIGHWAY_LEVEL_FROM_CITIES_MODE) {
                         case 0:
-                            level = BuildingInfo.getCityLevel(lower.getChunkX(), lower.getChunkZ(), provider);
+                            level = BuildingInfo.getCityLevel(lowerX, lowerZ, provider);
                             break;
                         case 1:
-                            level = Math.min(BuildingInfo.getCityLevel(lower.getChunkX(), lower.getChunkZ(), provider),
-                                    BuildingInfo.getCityLevel(higher.getChunkX(), higher.getChunkZ(), provider));
+                            level = Math.min(BuildingInfo.getCityLevel(lowerX, lowerZ, provider),
+                                    BuildingInfo.getCityLevel(higherX, higherZ, provider));
                             break;
                         case 2:
-                            level = Math.max(BuildingInfo.getCityLevel(lower.getChunkX(), lower.getChunkZ(), provider),
-                                    BuildingInfo.getCityLevel(higher.getChunkX(), higher.getChunkZ(), provider));
+                            level = Math.max(BuildingInfo.getCityLevel(lowerX, lowerZ, provider),
+                                    BuildingInfo.getCityLevel(higherX, higherZ, provider));
                             break;
                         case 3:
-                            level = (BuildingInfo.getCityLevel(lower.getChunkX(), lower.getChunkZ(), provider) +
-                                    BuildingInfo.getCityLevel(higher.getChunkX(), higher.getChunkZ(), provider)) / 2;
+                            level = (BuildingInfo.getCityLevel(lowerX, lowerZ, provider) +
+                                    BuildingInfo.getCityLevel(higherX, higherZ, provider)) / 2;
                             break;
                         default:
                             throw new RuntimeException("Bad value for 'highwayLevelFromCities'!");
                     }
-                    for (ChunkCoord cc = lower; cc.getCoord(orientation) <= higher.getCoord(orientation); cc = cc.higher(orientation)) {
-                        cache.put(cc, level);
-                    }
                 }
             }
+            line.add(lower, higher, level);
             return level;
-
         }
 
-        cache.put(cp, -1);
+        // No highway here. Remember the stretch without highway around this chunk (as far as we looked)
+        int lower = along - 1;
+        while (lower > along - MAX_GAP_SEARCH && !hasHighway(highways, orientation, lower, across, profile)) {
+            lower--;
+        }
+        int higher = along + 1;
+        while (higher < along + MAX_GAP_SEARCH && !hasHighway(highways, orientation, higher, across, profile)) {
+            higher++;
+        }
+        line.add(lower + 1, higher - 1, -1);
         return -1;
     }
 
-    private static boolean hasXHighway(ChunkCoord cp, LostCityProfile profile) {
-        return perlinX.getValue(cp.getChunkX() / profile.HIGHWAY_MAINPERLIN_SCALE, cp.getChunkZ() / profile.HIGHWAY_SECONDARYPERLIN_SCALE)
+    /**
+     * 'along' is the chunk coordinate in the direction of the highway, 'across' the other one
+     */
+    private static boolean hasHighway(Highways highways, Orientation orientation, int along, int across, LostCityProfile profile) {
+        if (orientation == Orientation.X) {
+            return hasXHighway(highways, along, across, profile);
+        } else {
+            return hasZHighway(highways, across, along, profile);
+        }
+    }
+
+    private static boolean hasXHighway(Highways highways, int chunkX, int chunkZ, LostCityProfile profile) {
+        return highways.perlinX.getValue(chunkX / profile.HIGHWAY_MAINPERLIN_SCALE, chunkZ / profile.HIGHWAY_SECONDARYPERLIN_SCALE)
                 > profile.HIGHWAY_PERLIN_FACTOR;
     }
 
-    private static boolean hasZHighway(ChunkCoord cp, LostCityProfile profile) {
-        return perlinZ.getValue(cp.getChunkX() / profile.HIGHWAY_SECONDARYPERLIN_SCALE, cp.getChunkZ() / profile.HIGHWAY_MAINPERLIN_SCALE)
+    private static boolean hasZHighway(Highways highways, int chunkX, int chunkZ, LostCityProfile profile) {
+        return highways.perlinZ.getValue(chunkX / profile.HIGHWAY_SECONDARYPERLIN_SCALE, chunkZ / profile.HIGHWAY_MAINPERLIN_SCALE)
                 > profile.HIGHWAY_PERLIN_FACTOR;
     }
 
+    /**
+     * The highway spans of all rows (for X highways) or columns (for Z highways) in a dimension
+     */
+    private static class Spans {
+        private final Int2ObjectOpenHashMap<Line> lines = new Int2ObjectOpenHashMap<>();
+
+        public synchronized Line getLine(int across) {
+            Line line = lines.get(across);
+            if (line == null) {
+                line = new Line();
+                lines.put(across, line);
+            }
+            return line;
+        }
+    }
+
+    /**
+     * The known spans on a single row or column: stretches of chunks that are part of the same
+     * highway (with its level or -1 if the highway isn't valid) and stretches without highway (-1).
+     * Spans don't overlap and are sorted so a chunk is found with a binary search
+     */
+    private static class Line {
+        private int[] starts = new int[8];
+        private int[] ends = new int[8];
+        private int[] levels = new int[8];
+        private int size = 0;
+
+        // Index of the last span that starts at or before 'along' or -1 if there is none
+        private int find(int along) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] <= along) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+
+        /**
+         * Return the level at this chunk or ChunkIntMap.NO_VALUE if it is not in a known span
+         */
+        public synchronized int get(int along) {
+            int i = find(along);
+            if (i >= 0 && along <= ends[i]) {
+                return levels[i];
+            }
+            return ChunkIntMap.NO_VALUE;
+        }
+
+        public synchronized void add(int start, int end, int level) {
+            int i = find(start);
+            // Another thread may have added (part of) this already. Only keep what isn't known yet
+            if (i >= 0 && start <= ends[i]) {
+                start = ends[i] + 1;
+            }
+            if (i + 1 < size && end >= starts[i + 1]) {
+                end = starts[i + 1] - 1;
+            }
+            if (start > end) {
+                return;
+            }
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                levels = Arrays.copyOf(levels, size * 2);
+            }
+            int pos = i + 1;
+            System.arraycopy(starts, pos, starts, pos + 1, size - pos);
+            System.arraycopy(ends, pos, ends, pos + 1, size - pos);
+            System.arraycopy(levels, pos, levels, pos + 1, size - pos);
+            starts[pos] = start;
+            ends[pos] = end;
+            levels[pos] = level;
+            size++;
+        }
+    }
 }
@@ -2,12 +2,11 @@ package mcjty.lostcities.worldgen.lost;
 
 import mcjty.lostcities.api.RailChunkType;
 import mcjty.lostcities.config.LostCityProfile;
-import mcjty.lostcities.varia.ChunkCoord;
+import mcjty.lostcities.varia.ChunkMap;
 import mcjty.lostcities.varia.QualityRandom;
+import mcjty.lostcities.worldgen.GenerationCaches;
 import mcjty.lostcities.worldgen.IDimensionInfo;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Random;
 
 import static mcjty.lostcities.api.RailChunkType.*;
@@ -86,11 +85,7 @@ public class Railway {
         }
     }
 
-    private static final Map<ChunkCoord, RailChunkInfo> railInfo = new HashMap<>();
-
-    public static void cleanCache() {
-        railInfo.clear();
-    }
+    private static final GenerationCaches.Key<ChunkMap<RailChunkInfo>> RAIL_INFO = new GenerationCaches.Key<>("railInfo", p -> new ChunkMap<>());
 
     /**
      * The station grid repeats every 9 chunks. There is never a station at every 18/18 multiple chunk
@@ -304,9 +299,10 @@ public class Railway {
     }
 
     public static RailChunkInfo getRailChunkType(int chunkX, int chunkZ, IDimensionInfo provider, LostCityProfile profile) {
-        ChunkCoord key = new ChunkCoord(provider.getType(), chunkX, chunkZ);
-        if (railInfo.containsKey(key)) {
-            return railInfo.get(key);
+        ChunkMap<RailChunkInfo> cache = provider.getCaches().get(RAIL_INFO);
+        RailChunkInfo cached = cache.get(chunkX, chunkZ);
+        if (cached != null) {
+            return cached;
         }
         RailChunkInfo info = getRailChunkTypeInternal(chunkX, chunkZ, provider);
         if (provider.getProfile().isSpace() && CitySphere.onCitySphereBorder(chunkX, chunkZ, provider)) {
@@ -320,7 +316,7 @@ public class Railway {
                 info = RailChunkInfo.NOTHING;
             }
         }
-        railInfo.put(key, info);
+        cache.put(chunkX, chunkZ, info);
         return info;
     }
 
@@ -12,10 +12,13 @@ public class AbstractAssetRegistry<T extends ILostCityAsset> implements ILostCit
 
     private final Map<String, T> assets = new HashMap<>();
     private final List<String> assetNames = new ArrayList<>();
+    // After AssetRegistries.compile() all assets are initialized so get() doesn't have to do that anymore
+    private volatile boolean compiled = false;
 
-    public void register(T building) {
+    public T register(T building) {
         assets.put(building.getName(), building);
         assetNames.add(building.getName());
+        return building;
     }
 
     public <S extends ILostCityAsset> ILostCityAssetRegistry<S> cast() {
@@ -28,7 +31,7 @@ public class AbstractAssetRegistry<T extends ILostCityAsset> implements ILostCit
             return null;
         }
         T t = assets.get(name);
-        if (t != null) {
+        if (t != null && !compiled) {
             t.init();
         }
         return t;
@@ -36,12 +39,20 @@ public class AbstractAssetRegistry<T extends ILostCityAsset> implements ILostCit
 
     public T get(int i) {
         T t = assets.get(assetNames.get(i));
-        if (t != null) {
+        if (t != null && !compiled) {
             t.init();
         }
         return t;
     }
 
+    public boolean contains(String name) {
+        return assets.containsKey(name);
+    }
+
+    void setCompiled() {
+        compiled = true;
+    }
+
     @Override
     public Iterable<T> getIterable() {
         return assets.values();
@@ -57,5 +68,7 @@ public class AbstractAssetRegistry<T extends ILostCityAsset> implements ILostCit
 
     public void reset() {
         assets.clear();
+        assetNames.clear();
+        compiled = false;
     }
 }
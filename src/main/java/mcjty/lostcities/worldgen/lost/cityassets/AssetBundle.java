@@ -0,0 +1,443 @@
+package mcjty.lostcities.worldgen.lost.cityassets;
+
+import com.google.gson.*;
+import com.google.gson.internal.LazilyParsedNumber;
+import mcjty.lostcities.LostCities;
+import mcjty.lostcities.api.ILostCityAsset;
+import mcjty.lostcities.setup.ModSetup;
+import mcjty.lostcities.varia.Tools;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.registry.Registry;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A binary copy of all loaded assets. The bundle is keyed by a hash of the contents of all json files
+ * (and of the installed blocks). As long as that hash doesn't change the assets are read from the bundle
+ * instead of the json files. The bundle keeps the json objects (with all strings in one table), the
+ * block states that the palettes need (as block state ids so they don't have to be parsed again) and
+ * the vertical slices of the parts. If the hash differs (or the bundle can't be read) the json files
+ * are loaded as usual and a new bundle is written
+ */
+public class AssetBundle {
+
+    private static final int MAGIC = 0x4c434142;    // 'LCAB'
+    private static final int VERSION = 1;
+    private static final int HASH_SIZE = 32;
+    private static final int HEADER_SIZE = 4 + 4 + HASH_SIZE;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_TRUE = 1;
+    private static final byte TAG_FALSE = 2;
+    private static final byte TAG_NUMBER = 3;
+    private static final byte TAG_STRING = 4;
+    private static final byte TAG_ARRAY = 5;
+    private static final byte TAG_OBJECT = 6;
+
+    /**
+     * A json file to load. The data is null if the file doesn't exist (which is not an error)
+     */
+    public static class Source {
+        private final String name;
+        private final byte[] data;
+
+        private Source(String name, @Nullable byte[] data) {
+            this.name = name;
+            this.data = data;
+        }
+
+        public static Source resource(String path) {
+            try (InputStream in = LostCities.class.getResourceAsStream(path)) {
+                if (in == null) {
+                    throw new RuntimeException("Could not find asset '" + path + "'!");
+                }
+                return new Source(path, readAll(in));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public static Source file(String name, File file) {
+            try (InputStream in = new FileInputStream(file)) {
+                return new Source(name, readAll(in));
+            } catch (FileNotFoundException e) {
+                return new Source(name, null);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Load all sources. If bundleFile is not null it is used if it matches the sources and else
+     * it is written after loading the json files. The json files are read in parallel but the assets are
+     * registered in the order of the sources so a later asset still replaces an earlier one with the same name
+     */
+    public static void load(List<Source> sources, @Nullable File bundleFile) {
+        byte[] hash = hash(sources);
+        if (bundleFile != null && bundleFile.exists()) {
+            try {
+                if (read(bundleFile, hash)) {
+                    return;
+                }
+            } catch (IOException | RuntimeException e) {
+                ModSetup.getLogger().warn("Could not read asset bundle '" + bundleFile + "', loading the json assets instead", e);
+                AssetRegistries.reset();
+            }
+        }
+
+        Map<String, BlockState> states = new ConcurrentHashMap<>();
+        StringTable strings = bundleFile == null ? null : new StringTable();
+        List<LoadedSource> loaded = new ArrayList<>();
+        int threads = Math.max(1, Math.min(sources.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "Lost Cities Assets");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Tools.setStateCache(states);
+        try {
+            List<Future<LoadedSource>> futures = new ArrayList<>();
+            for (Source source : sources) {
+                futures.add(executor.submit(() -> loadSource(source, strings)));
+            }
+            for (Future<LoadedSource> future : futures) {
+                LoadedSource source = getResult(future);
+                for (ILostCityAsset asset : source.assets) {
+                    AssetRegistries.register(asset);
+                }
+                loaded.add(source);
+            }
+        } finally {
+            Tools.setStateCache(null);
+            executor.shutdownNow();
+        }
+
+        if (bundleFile != null) {
+            try {
+                write(bundleFile, hash, sources, loaded, states, strings);
+            } catch (IOException | RuntimeException e) {
+                ModSetup.getLogger().warn("Could not write asset bundle '" + bundleFile + "'", e);
+            }
+        }
+    }
+
+    /**
+     * The assets of one json file and (if a bundle will be written) its part of the bundle
+     */
+    private static class LoadedSource {
+        private final List<ILostCityAsset> assets = new ArrayList<>();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    }
+
+    // Runs on one of the loader threads. The json objects are streamed and dropped as soon as their asset is made
+    private static LoadedSource loadSource(Source source, @Nullable StringTable strings) {
+        LoadedSource loaded = new LoadedSource();
+        if (source.data == null) {
+            return loaded;
+        }
+        DataOutputStream out = strings == null ? null : new DataOutputStream(loaded.bytes);
+        AssetRegistries.read(new ByteArrayInputStream(source.data), source.name, object -> {
+            ILostCityAsset asset = AssetRegistries.create(object, source.name);
+            loaded.assets.add(asset);
+            if (out != null) {
+                try {
+                    writeEntry(out, object, asset, strings);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+        return loaded;
+    }
+
+    private static LoadedSource getResult(Future<LoadedSource> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * All strings of the bundle. Strings are added from several threads so the index of a string
+     * can differ between two bundles made from the same sources
+     */
+    private static class StringTable {
+        private final Map<String, Integer> indices = new ConcurrentHashMap<>();
+        private final AtomicInteger counter = new AtomicInteger();
+
+        private int intern(String s) {
+            return indices.computeIfAbsent(s, k -> counter.getAndIncrement());
+        }
+
+        private String[] toArray() {
+            String[] strings = new String[counter.get()];
+            for (Map.Entry<String, Integer> entry : indices.entrySet()) {
+                strings[entry.getValue()] = entry.getKey();
+            }
+            return strings;
+        }
+    }
+
+    // Returns false if the bundle doesn't match the sources
+    private static boolean read(File bundleFile, byte[] hash) throws IOException {
+        try (FileChannel channel = FileChannel.open(bundleFile.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return false;
+            }
+            // Check the header before mapping the file
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    return false;
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return false;
+            }
+            byte[] bundleHash = new byte[HASH_SIZE];
+            header.get(bundleHash);
+            if (!Arrays.equals(hash, bundleHash)) {
+                return false;
+            }
+
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.position(HEADER_SIZE);
+
+            String[] strings = new String[buffer.getInt()];
+            for (int i = 0 ; i < strings.length ; i++) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            Map<String, BlockState> states = new ConcurrentHashMap<>();
+            int stateCount = buffer.getInt();
+            for (int i = 0 ; i < stateCount ; i++) {
+                String name = strings[buffer.getInt()];
+                BlockState state = Block.stateById(buffer.getInt());
+                states.put(name, state);
+            }
+
+            Tools.setStateCache(states);
+            try {
+                int sourceCount = buffer.getInt();
+                for (int s = 0 ; s < sourceCount ; s++) {
+                    String name = strings[buffer.getInt()];
+                    int entryCount = buffer.getInt();
+                    for (int e = 0 ; e < entryCount ; e++) {
+                        JsonObject object = readElement(buffer, strings).getAsJsonObject();
+                        ILostCityAsset asset = AssetRegistries.create(object, name);
+                        AssetRegistries.register(asset);
+                        if (asset instanceof BuildingPart) {
+                            char[][] vslices = new char[buffer.getInt()][];
+                            for (int i = 0 ; i < vslices.length ; i++) {
+                                int idx = buffer.getInt();
+                                vslices[i] = idx < 0 ? null : strings[idx].toCharArray();
+                            }
+                            ((BuildingPart) asset).setVslices(vslices);
+                        }
+                    }
+                }
+            } finally {
+                Tools.setStateCache(null);
+            }
+        }
+        return true;
+    }
+
+    private static JsonElement readElement(ByteBuffer buffer, String[] strings) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case TAG_NULL:
+                return JsonNull.INSTANCE;
+            case TAG_TRUE:
+                return new JsonPrimitive(true);
+            case TAG_FALSE:
+                return new JsonPrimitive(false);
+            case TAG_NUMBER:
+                // Gson keeps the text of a number too, so getAsInt(), getAsFloat() and getAsString() behave the same as with the json
+                return new JsonPrimitive(new LazilyParsedNumber(strings[buffer.getInt()]));
+            case TAG_STRING:
+                return new JsonPrimitive(strings[buffer.getInt()]);
+            case TAG_ARRAY: {
+                int count = buffer.getInt();
+                JsonArray array = new JsonArray();
+                for (int i = 0 ; i < count ; i++) {
+                    array.add(readElement(buffer, strings));
+                }
+                return array;
+            }
+            case TAG_OBJECT: {
+                int count = buffer.getInt();
+                JsonObject object = new JsonObject();
+                for (int i = 0 ; i < count ; i++) {
+                    String key = strings[buffer.getInt()];
+                    object.add(key, readElement(buffer, strings));
+                }
+                return object;
+            }
+            default:
+                throw new RuntimeException("Bad tag " + tag + " in asset bundle!");
+        }
+    }
+
+    private static void write(File bundleFile, byte[] hash, List<Source> sources, List<LoadedSource> loaded,
+                              Map<String, BlockState> states, StringTable strings) throws IOException {
+        List<Map.Entry<String, BlockState>> stateList = new ArrayList<>();
+        for (Map.Entry<String, BlockState> entry : states.entrySet()) {
+            if (Block.getId(entry.getValue()) >= 0) {
+                stateList.add(entry);
+                strings.intern(entry.getKey());
+            }
+        }
+        for (Source source : sources) {
+            strings.intern(source.name);
+        }
+
+        File parent = bundleFile.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        File tmp = new File(parent, bundleFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(hash);
+
+            String[] table = strings.toArray();
+            out.writeInt(table.length);
+            for (String string : table) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            out.writeInt(stateList.size());
+            for (Map.Entry<String, BlockState> entry : stateList) {
+                out.writeInt(strings.intern(entry.getKey()));
+                out.writeInt(Block.getId(entry.getValue()));
+            }
+
+            out.writeInt(sources.size());
+            for (int s = 0 ; s < sources.size() ; s++) {
+                LoadedSource source = loaded.get(s);
+                out.writeInt(strings.intern(sources.get(s).name));
+                out.writeInt(source.assets.size());
+                source.bytes.writeTo(out);
+            }
+        }
+        try {
+            Files.move(tmp.toPath(), bundleFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), bundleFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, JsonObject object, ILostCityAsset asset, StringTable strings) throws IOException {
+        writeElement(out, object, strings);
+        if (asset instanceof BuildingPart) {
+            char[][] vslices = ((BuildingPart) asset).getVslices();
+            out.writeInt(vslices.length);
+            for (char[] vslice : vslices) {
+                out.writeInt(vslice == null ? -1 : strings.intern(new String(vslice)));
+            }
+        }
+    }
+
+    private static void writeElement(DataOutputStream out, JsonElement element, StringTable strings) throws IOException {
+        if (element.isJsonNull()) {
+            out.writeByte(TAG_NULL);
+        } else if (element.isJsonPrimitive()) {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                out.writeByte(primitive.getAsBoolean() ? TAG_TRUE : TAG_FALSE);
+            } else if (primitive.isNumber()) {
+                out.writeByte(TAG_NUMBER);
+                out.writeInt(strings.intern(primitive.getAsString()));
+            } else {
+                out.writeByte(TAG_STRING);
+                out.writeInt(strings.intern(primitive.getAsString()));
+            }
+        } else if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            out.writeByte(TAG_ARRAY);
+            out.writeInt(array.size());
+            for (JsonElement e : array) {
+                writeElement(out, e, strings);
+            }
+        } else {
+            Set<Map.Entry<String, JsonElement>> entries = element.getAsJsonObject().entrySet();
+            out.writeByte(TAG_OBJECT);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, JsonElement> entry : entries) {
+                out.writeInt(strings.intern(entry.getKey()));
+                writeElement(out, entry.getValue(), strings);
+            }
+        }
+    }
+
+    // The hash of the bundle format, the installed blocks (block state ids depend on them) and all sources
+    private static byte[] hash(List<Source> sources) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(VERSION);
+            for (Block block : Registry.BLOCK) {
+                out.writeUTF(String.valueOf(Registry.BLOCK.getKey(block)));
+                out.writeInt(Block.getId(block.defaultBlockState()));
+                out.writeInt(block.getStateDefinition().getPossibleStates().size());
+            }
+            for (Source source : sources) {
+                out.writeUTF(source.name);
+                out.writeInt(source.data == null ? -1 : source.data.length);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        digest.update(bytes.toByteArray());
+        for (Source source : sources) {
+            if (source.data != null) {
+                digest.update(source.data);
+            }
+        }
+        return digest.digest();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -1,14 +1,18 @@
 package mcjty.lostcities.worldgen.lost.cityassets;
 
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import mcjty.lostcities.api.ILostCityAsset;
 import mcjty.lostcities.setup.ModSetup;
 import mcjty.lostcities.varia.Counter;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 public class AssetRegistries {
 
@@ -36,6 +40,76 @@ public class AssetRegistries {
         PREDEFINED_SPHERES.reset();
     }
 
+    /**
+     * Resolve and check all assets after they are loaded. This is done now so that all problems are
+     * reported at startup and the first chunks don't have to do the work. Everything is checked and every
+     * problem is logged. Assets with problems are still registered and fail the same way as before
+     * if they are ever generated
+     */
+    public static void compile() {
+        List<String> errors = new ArrayList<>();
+
+        // City styles can inherit from each other in any order so they are resolved on this thread
+        for (CityStyle style : CITYSTYLES.getIterable()) {
+            try {
+                style.init();
+            } catch (RuntimeException e) {
+                errors.add(e.getMessage());
+            }
+        }
+
+        Set<Character> paletteCharacters = new HashSet<>();
+        for (Palette palette : PALETTES.getIterable()) {
+            paletteCharacters.addAll(palette.palette.keySet());
+        }
+
+        errors.addAll(compile(PARTS, (part, e) -> part.compile(paletteCharacters, e)));
+        errors.addAll(compile(BUILDINGS, Building::validate));
+        errors.addAll(compile(MULTI_BUILDINGS, MultiBuilding::validate));
+        errors.addAll(compile(CITYSTYLES, CityStyle::validate));
+        errors.addAll(compile(STYLES, Style::validate));
+        errors.addAll(compile(WORLDSTYLES, WorldStyle::validate));
+
+        CONDITIONS.setCompiled();
+        WORLDSTYLES.setCompiled();
+        PARTS.setCompiled();
+        BUILDINGS.setCompiled();
+        CITYSTYLES.setCompiled();
+        MULTI_BUILDINGS.setCompiled();
+        STYLES.setCompiled();
+        PALETTES.setCompiled();
+        PREDEFINED_CITIES.setCompiled();
+        PREDEFINED_SPHERES.setCompiled();
+
+        for (String error : errors) {
+            ModSetup.getLogger().error(error);
+        }
+        if (!errors.isEmpty()) {
+            ModSetup.getLogger().error("Found " + errors.size() + " problems in the Lost Cities assets!");
+        }
+    }
+
+    // Compile all assets of a registry in parallel. The errors are returned in the order of the assets
+    private static <T extends ILostCityAsset> List<String> compile(AbstractAssetRegistry<T> registry, BiConsumer<T, List<String>> compiler) {
+        List<T> assets = new ArrayList<>();
+        registry.getIterable().forEach(assets::add);
+        return assets.parallelStream().flatMap(asset -> {
+            List<String> errors = new ArrayList<>();
+            try {
+                compiler.accept(asset, errors);
+            } catch (RuntimeException e) {
+                errors.add("Error in '" + asset.getName() + "': " + e.getMessage());
+            }
+            return errors.stream();
+        }).collect(Collectors.toList());
+    }
+
+    static void checkReference(AbstractAssetRegistry<?> registry, String name, String what, String userType, String user, List<String> errors) {
+        if (name != null && !registry.contains(name)) {
+            errors.add("Missing " + what + " '" + name + "' used by " + userType + " '" + user + "'!");
+        }
+    }
+
     public static void load(File file) {
         try(FileInputStream in = new FileInputStream(file)) {
             load(in, file.getName());
@@ -125,38 +199,84 @@ public class AssetRegistries {
     }
 
     public static void load(InputStream inputstream, String filename) {
-        try(BufferedReader br = new BufferedReader(new InputStreamReader(inputstream, StandardCharsets.UTF_8))) {
+        read(inputstream, filename, object -> register(create(object, filename)));
+    }
+
+    /**
+     * Read the objects of an asset file one by one. Only the object that is being handled is kept in memory
+     */
+    static void read(InputStream inputstream, String filename, Consumer<JsonObject> consumer) {
+        try(JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(inputstream, StandardCharsets.UTF_8)))) {
             JsonParser parser = new JsonParser();
-            JsonElement element = parser.parse(br);
-            for (JsonElement entry : element.getAsJsonArray()) {
-                JsonObject object = entry.getAsJsonObject();
-                String type = object.get("type").getAsString();
-                if ("style".equals(type)) {
-                    STYLES.register(new Style(object));
-                } else if ("condition".equals(type)) {
-                    CONDITIONS.register(new Condition(object));
-                } else if ("palette".equals(type)) {
-                    PALETTES.register(new Palette(object));
-                } else if ("citystyle".equals(type)) {
-                    CITYSTYLES.register(new CityStyle(object));
-                } else if ("part".equals(type)) {
-                    PARTS.register(new BuildingPart(object));
-                } else if ("building".equals(type)) {
-                    BUILDINGS.register(new Building(object));
-                } else if ("multibuilding".equals(type)) {
-                    MULTI_BUILDINGS.register(new MultiBuilding(object));
-                } else if ("worldstyle".equals(type)) {
-                    WORLDSTYLES.register(new WorldStyle(object));
-                } else if ("city".equals(type)) {
-                    PREDEFINED_CITIES.register(new PredefinedCity(object));
-                } else if ("sphere".equals(type)) {
-                    PREDEFINED_SPHERES.register(new PredefinedSphere(object));
-                } else {
-                    throw new RuntimeException("Unknown type '" + type + " in " + filename + "'!");
-                }
+            reader.setLenient(true);
+            reader.beginArray();
+            while (reader.hasNext()) {
+                consumer.accept(parser.parse(reader).getAsJsonObject());
             }
+            reader.endArray();
         } catch (IOException e) {
             throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Error reading assets from '" + filename + "'!", e);
+        }
+    }
+
+    /**
+     * Make the asset for a json object. This doesn't touch the registries so it can be done on any thread
+     */
+    static ILostCityAsset create(JsonObject object, String filename) {
+        String type = object.get("type").getAsString();
+        if ("style".equals(type)) {
+            return new Style(object);
+        } else if ("condition".equals(type)) {
+            return new Condition(object);
+        } else if ("palette".equals(type)) {
+            return new Palette(object);
+        } else if ("citystyle".equals(type)) {
+            return new CityStyle(object);
+        } else if ("part".equals(type)) {
+            return new BuildingPart(object);
+        } else if ("building".equals(type)) {
+            return new Building(object);
+        } else if ("multibuilding".equals(type)) {
+            return new MultiBuilding(object);
+        } else if ("worldstyle".equals(type)) {
+            return new WorldStyle(object);
+        } else if ("city".equals(type)) {
+            return new PredefinedCity(object);
+        } else if ("sphere".equals(type)) {
+            return new PredefinedSphere(object);
+        } else {
+            throw new RuntimeException("Unknown type '" + type + " in " + filename + "'!");
+        }
+    }
+
+    /**
+     * Register an asset in the right registry. An asset with the same name as an earlier one replaces it
+     */
+    static void register(ILostCityAsset asset) {
+        if (asset instanceof Style) {
+            STYLES.register((Style) asset);
+        } else if (asset instanceof Condition) {
+            CONDITIONS.register((Condition) asset);
+        } else if (asset instanceof Palette) {
+            PALETTES.register((Palette) asset);
+        } else if (asset instanceof CityStyle) {
+            CITYSTYLES.register((CityStyle) asset);
+        } else if (asset instanceof BuildingPart) {
+            PARTS.register((BuildingPart) asset);
+        } else if (asset instanceof Building) {
+            BUILDINGS.register((Building) asset);
+        } else if (asset instanceof MultiBuilding) {
+            MULTI_BUILDINGS.register((MultiBuilding) asset);
+        } else if (asset instanceof WorldStyle) {
+            WORLDSTYLES.register((WorldStyle) asset);
+        } else if (asset instanceof PredefinedCity) {
+            PREDEFINED_CITIES.register((PredefinedCity) asset);
+        } else if (asset instanceof PredefinedSphere) {
+            PREDEFINED_SPHERES.register((PredefinedSphere) asset);
+        } else {
+            throw new RuntimeException("Unknown asset '" + asset.getName() + "'!");
         }
     }
 }
@@ -158,4 +158,12 @@ public class Building implements ILostCityBuilding {
         return partNames.get(random.nextInt(partNames.size()));
     }
 
+    void validate(List<String> errors) {
+        for (Pair<Predicate<ConditionContext>, String> pair : parts) {
+            AssetRegistries.checkReference(AssetRegistries.PARTS, pair.getRight(), "part", "building", name, errors);
+        }
+        for (Pair<Predicate<ConditionContext>, String> pair : parts2) {
+            AssetRegistries.checkReference(AssetRegistries.PARTS, pair.getRight(), "part", "building", name, errors);
+        }
+    }
 }
@@ -10,8 +10,7 @@ import mcjty.lostcities.worldgen.lost.BuildingInfo;
 import net.minecraft.block.BlockState;
 import org.apache.commons.lang3.StringUtils;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 /**
  * A structure part
@@ -105,6 +104,11 @@ public class BuildingPart implements IBuildingPart, ILostCityAsset {
         return vslices;
     }
 
+    // Used when the part comes from an asset bundle where the vertical slices are already made
+    void setVslices(char[][] vslices) {
+        this.vslices = vslices;
+    }
+
     @Override
     public char[] getVSlice(int x, int z) {
         return getVslices()[z*xSize + x];
@@ -122,6 +126,31 @@ public class BuildingPart implements IBuildingPart, ILostCityAsset {
         return localPalette;
     }
 
+    /**
+     * Make the vertical slices and find the local palette now instead of when the part is first generated.
+     * Characters that are in no palette at all (the local one or one of the global ones) can never be generated
+     */
+    void compile(Set<Character> paletteCharacters, List<String> errors) {
+        if (refPaletteName != null && !AssetRegistries.PALETTES.contains(refPaletteName)) {
+            errors.add("Palette '" + refPaletteName + "' used by part '" + name + "' is missing!");
+        }
+        Palette palette = refPaletteName == null ? localPalette : AssetRegistries.PALETTES.get(refPaletteName);
+        localPalette = palette;
+        Set<Character> missing = new TreeSet<>();
+        for (char[] vslice : getVslices()) {
+            if (vslice != null) {
+                for (char c : vslice) {
+                    if (!paletteCharacters.contains(c) && (palette == null || !palette.palette.containsKey(c))) {
+                        missing.add(c);
+                    }
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            errors.add("Part '" + name + "' uses characters " + missing + " that are in no palette!");
+        }
+    }
+
     @Override
     public void readFromJSon(JsonObject object) {
         name = object.get("name").getAsString();
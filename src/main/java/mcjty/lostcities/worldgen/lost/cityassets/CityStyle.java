@@ -49,6 +49,7 @@ public class CityStyle implements ILostCityCityStyle {
 
     private String inherit;
     private boolean resolveInherit = false;
+    private volatile boolean initialized = false;
 
     public CityStyle(JsonObject object) {
         readFromJSon(object);
@@ -157,6 +158,16 @@ public class CityStyle implements ILostCityCityStyle {
 
     @Override
     public void init() {
+        // This is called from several worldgen threads so make sure the inheritance is only resolved once
+        if (!initialized) {
+            synchronized (this) {
+                resolveInheritance();
+                initialized = true;
+            }
+        }
+    }
+
+    private void resolveInheritance() {
         if (!resolveInherit) {
             resolveInherit = true;
             if (inherit != null) {
@@ -464,4 +475,25 @@ public class CityStyle implements ILostCityCityStyle {
     public String getRandomMultiBuilding(Random random) {
         return Tools.getRandomFromList(random, multiBuildingSelector);
     }
+
+    // Check that everything this style refers to exists. Called after the inheritance is resolved
+    void validate(List<String> errors) {
+        if (style != null) {
+            AssetRegistries.checkReference(AssetRegistries.STYLES, style, "style", "citystyle", name, errors);
+        }
+        checkReferences(AssetRegistries.BUILDINGS, buildingSelector, "building", errors);
+        checkReferences(AssetRegistries.MULTI_BUILDINGS, multiBuildingSelector, "multibuilding", errors);
+        checkReferences(AssetRegistries.PARTS, parkSelector, "park", errors);
+        checkReferences(AssetRegistries.PARTS, fountainSelector, "fountain", errors);
+        checkReferences(AssetRegistries.PARTS, stairSelector, "stair", errors);
+        checkReferences(AssetRegistries.PARTS, frontSelector, "front", errors);
+        checkReferences(AssetRegistries.PARTS, bridgeSelector, "bridge", errors);
+        checkReferences(AssetRegistries.PARTS, railDungeonSelector, "raildungeon", errors);
+    }
+
+    private void checkReferences(AbstractAssetRegistry<?> registry, List<Pair<Float, String>> selector, String what, List<String> errors) {
+        for (Pair<Float, String> pair : selector) {
+            AssetRegistries.checkReference(registry, pair.getRight(), what, "citystyle", name, errors);
+        }
+    }
 }
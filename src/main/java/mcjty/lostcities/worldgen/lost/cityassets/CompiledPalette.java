@@ -1,24 +1,51 @@
 package mcjty.lostcities.worldgen.lost.cityassets;
 
-import mcjty.lostcities.LostCities;
-import mcjty.lostcities.worldgen.LostCityTerrainFeature;
+import mcjty.lostcities.worldgen.lost.Transform;
 import net.minecraft.block.BlockState;
 import org.apache.commons.lang3.tuple.Pair;
-import org.apache.logging.log4j.Level;
+import org.apache.commons.lang3.tuple.Triple;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Random;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * More efficient representation of a palette useful for a single chunk
+ * More efficient representation of a palette. Entries are kept in arrays indexed by the palette
+ * character so a lookup is a single array access. A compiled palette never changes after it has
+ * been made so it can be shared between chunks and worldgen threads
  */
 public class CompiledPalette {
 
-    private final Map<Character, Object> palette = new HashMap<>();
-    private final Map<BlockState, BlockState> damagedToBlock = new HashMap<>();
-    private final Map<Character, Info> information = new HashMap<>();
+    private static final int MAX_INTERNED = 1000;
+    private static final int MAX_LOCAL_PALETTES = 1000;
+    private static final int MAX_COMPILED_PARTS = 5000;
+
+    // Compiled palettes shared by all chunks that use the same combination of palettes. Least recently used ones are dropped
+    private static final Map<String, CompiledPalette> interned = lru(MAX_INTERNED);
+    // Shared palettes combined with a local palette and parts compiled against shared palettes (per transform)
+    private static final Map<Pair<CompiledPalette, Palette>, CompiledPalette> sharedLocalPalettes = lru(MAX_LOCAL_PALETTES);
+    private static final Map<Triple<CompiledPalette, IBuildingPart, Transform>, CompiledPart> sharedCompiledParts = lru(MAX_COMPILED_PARTS);
+
+    private static final LongAdder internHits = new LongAdder();
+    private static final LongAdder internMisses = new LongAdder();
+    private static final LongAdder localHits = new LongAdder();
+    private static final LongAdder localMisses = new LongAdder();
+    private static final LongAdder partHits = new LongAdder();
+    private static final LongAdder partMisses = new LongAdder();
+
+    // Indexed by palette character. For every character at most one of 'straight' and 'random' is set
+    private final BlockState[] straight;            // Entries with a single block
+    private final BlockState[][] random;            // Entries with 128 weighted random blocks
+    private final Info[] information;
+    private final Map<BlockState, BlockState> damagedToBlock;
+    private final Set<Character> characters;
+
+    // A shared palette keeps its compiled parts and local combinations in the global (bounded) caches. A palette
+    // that isn't shared is only used by one chunk so it keeps them itself and they go away with it
+    private volatile boolean shared = false;
+    private final Map<IBuildingPart, CompiledPart[]> compiledParts = new ConcurrentHashMap<>();
+    private final Map<Palette, CompiledPalette> withLocalPalette = new ConcurrentHashMap<>();
 
     public static class Info {
         private final String mobId;
@@ -45,18 +72,121 @@ public class CompiledPalette {
     }
 
 
+    private static <K, V> Map<K, V> lru(int max) {
+        return Collections.synchronizedMap(new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > max;
+            }
+        });
+    }
+
+    public static void cleanCache() {
+        interned.clear();
+        sharedLocalPalettes.clear();
+        sharedCompiledParts.clear();
+    }
+
+    /**
+     * Get the compiled version of a palette. Palettes that are merged from named palettes are
+     * compiled only once and then shared
+     */
+    public static CompiledPalette getCompiledPalette(Palette palette) {
+        String key = palette.getMergeKey();
+        if (key == null) {
+            return new CompiledPalette(palette);
+        }
+        CompiledPalette compiled = interned.get(key);
+        if (compiled != null) {
+            internHits.increment();
+            return compiled;
+        }
+        internMisses.increment();
+        compiled = new CompiledPalette(palette);
+        compiled.shared = true;
+        synchronized (interned) {
+            CompiledPalette old = interned.get(key);
+            if (old != null) {
+                return old;
+            }
+            interned.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    public static String getCacheStatistics() {
+        return "palettes: size=" + interned.size() + "/" + MAX_INTERNED + ", " + getReuse(internHits, internMisses)
+                + ", local palettes: size=" + sharedLocalPalettes.size() + "/" + MAX_LOCAL_PALETTES + ", " + getReuse(localHits, localMisses)
+                + ", compiled parts: size=" + sharedCompiledParts.size() + "/" + MAX_COMPILED_PARTS + ", " + getReuse(partHits, partMisses);
+    }
+
+    private static String getReuse(LongAdder hits, LongAdder misses) {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return "hits=" + h + ", misses=" + (total - h) + ", reuse=" + (total == 0 ? 0 : (h * 100 / total)) + "%";
+    }
+
     public CompiledPalette(CompiledPalette other, Palette... palettes) {
-        this.palette.putAll(other.palette);
-        this.damagedToBlock.putAll(other.damagedToBlock);
-        this.information.putAll(other.information);
-        addPalettes(palettes);
+        this(other.getEntries(), new HashMap<>(other.damagedToBlock), other.getInformation(), palettes);
     }
 
     public CompiledPalette(Palette... palettes) {
-        addPalettes(palettes);
+        this(new HashMap<>(), new HashMap<>(), new HashMap<>(), palettes);
+    }
+
+    private CompiledPalette(Map<Character, Object> palette, Map<BlockState, BlockState> damagedToBlock, Map<Character, Info> information, Palette[] palettes) {
+        addPalettes(palette, damagedToBlock, information, palettes);
+
+        int size = 0;
+        for (Character c : palette.keySet()) {
+            size = Math.max(size, c + 1);
+        }
+        for (Character c : information.keySet()) {
+            size = Math.max(size, c + 1);
+        }
+        this.straight = new BlockState[size];
+        this.random = new BlockState[size][];
+        this.information = new Info[size];
+        for (Map.Entry<Character, Object> entry : palette.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof BlockState) {
+                straight[entry.getKey()] = (BlockState) value;
+            } else if (value instanceof BlockState[]) {
+                random[entry.getKey()] = (BlockState[]) value;
+            } else {
+                throw new RuntimeException("Invalid palette entry for '" + entry.getKey() + "'!");
+            }
+        }
+        for (Map.Entry<Character, Info> entry : information.entrySet()) {
+            this.information[entry.getKey()] = entry.getValue();
+        }
+        this.damagedToBlock = damagedToBlock;
+        this.characters = Collections.unmodifiableSet(new HashSet<>(palette.keySet()));
+    }
+
+    private Map<Character, Object> getEntries() {
+        Map<Character, Object> entries = new HashMap<>();
+        for (char c = 0 ; c < straight.length ; c++) {
+            if (straight[c] != null) {
+                entries.put(c, straight[c]);
+            } else if (random[c] != null) {
+                entries.put(c, random[c]);
+            }
+        }
+        return entries;
     }
 
-    private int addEntries(BlockState[] randomBlocks, int idx, BlockState c, int cnt) {
+    private Map<Character, Info> getInformation() {
+        Map<Character, Info> info = new HashMap<>();
+        for (char c = 0 ; c < information.length ; c++) {
+            if (information[c] != null) {
+                info.put(c, information[c]);
+            }
+        }
+        return info;
+    }
+
+    private static int addEntries(BlockState[] randomBlocks, int idx, BlockState c, int cnt) {
         for (int i = 0 ; i < cnt ; i++) {
             if (idx >= randomBlocks.length) {
                 return idx;
@@ -66,7 +196,7 @@ public class CompiledPalette {
         return idx;
     }
 
-    public void addPalettes(Palette[] palettes) {
+    private static void addPalettes(Map<Character, Object> palette, Map<BlockState, BlockState> damagedToBlock, Map<Character, Info> information, Palette[] palettes) {
         // First add the straight palette entries
         for (Palette p : palettes) {
             for (Map.Entry<Character, Object> entry : p.palette.entrySet()) {
@@ -133,73 +263,115 @@ public class CompiledPalette {
     }
 
     public Set<Character> getCharacters() {
-        return palette.keySet();
+        return characters;
     }
 
+    /**
+     * Return the block for this character. For a random entry this is always the first variant
+     */
     public BlockState getStraight(char c) {
-        try {
-            Object o = palette.get(c);
-            if (o instanceof BlockState) {
-                return (BlockState) o;
-            } else if (o instanceof Character) {
-                throw new IllegalStateException("BAD!");
-//                return Block.BLOCK_STATE_IDS.getByValue((Character) o);
-            } else {
-                BlockState[] randomBlocks = (BlockState[]) o;
-                return randomBlocks[0];
-            }
-        } catch (Exception e) {
-            LostCities.logger.log(Level.ERROR, e);
+        if (c >= straight.length) {
             return null;
         }
+        BlockState state = straight[c];
+        if (state == null && random[c] != null) {
+            return random[c][0];
+        }
+        return state;
     }
 
     /**
-     * Return true if this is a simple character that can have only one value in the palette
+     * Return true if this is a simple character that can have only one value in the palette. Compiled
+     * palettes only have blocks and random blocks so this is never the case
      */
     public boolean isSimple(char c) {
-        Object o = palette.get(c);
-        return o instanceof Character;
+        return false;
     }
 
     // Same as get(c) but with a predefined random generator that is predictable
     public BlockState get(char c, Random rand) {
-        try {
-            Object o = palette.get(c);
-            if (o instanceof BlockState) {
-                return (BlockState) o;
-            } else if (o == null) {
-                return null;
-            } else {
-                BlockState[] randomBlocks = (BlockState[]) o;
-                return randomBlocks[rand.nextInt(128)];
-            }
-        } catch (Exception e) {
-            LostCities.logger.log(Level.ERROR, e);
+        if (c >= straight.length) {
             return null;
         }
-
+        BlockState state = straight[c];
+        if (state == null && random[c] != null) {
+            return random[c][rand.nextInt(128)];
+        }
+        return state;
     }
 
     public BlockState get(char c) {
-        try {
-            Object o = palette.get(c);
-            if (o instanceof BlockState) {
-                return (BlockState) o;
-            } else if (o == null) {
-                return null;
-            } else {
-                BlockState[] randomBlocks = (BlockState[]) o;
-                return randomBlocks[LostCityTerrainFeature.fastrand128()];
+        if (c >= straight.length) {
+            return null;
+        }
+        BlockState state = straight[c];
+        if (state == null && random[c] != null) {
+            // Every thread has its own ThreadLocalRandom so this is safe during parallel worldgen
+            return random[c][ThreadLocalRandom.current().nextInt(128)];
+        }
+        return state;
+    }
+
+    /**
+     * Return the 128 random variants if this is a random palette entry. Otherwise null
+     */
+    public BlockState[] getVariants(char c) {
+        return c < random.length ? random[c] : null;
+    }
+
+    /**
+     * Get this palette combined with the local palette of a part. For a shared palette the combination
+     * is kept in a bounded cache (and is shared too). Two threads might make the same combination at the
+     * same time. That's harmless
+     */
+    public CompiledPalette withLocalPalette(Palette localPalette) {
+        if (!shared) {
+            return withLocalPalette.computeIfAbsent(localPalette, p -> new CompiledPalette(this, p));
+        }
+        Pair<CompiledPalette, Palette> key = Pair.of(this, localPalette);
+        CompiledPalette combined = sharedLocalPalettes.get(key);
+        if (combined != null) {
+            localHits.increment();
+        } else {
+            localMisses.increment();
+            combined = new CompiledPalette(this, localPalette);
+            combined.shared = true;
+            sharedLocalPalettes.put(key, combined);
+        }
+        return combined;
+    }
+
+    /**
+     * Get the given part compiled against this palette. For a shared palette compiled parts are kept
+     * in a bounded cache. Two threads might compile the same part at the same time. That's harmless
+     */
+    public CompiledPart getCompiledPart(IBuildingPart part, Transform transform) {
+        if (!shared) {
+            CompiledPart[] parts = compiledParts.computeIfAbsent(part, p -> new CompiledPart[Transform.values().length]);
+            CompiledPart compiled = parts[transform.ordinal()];
+            if (compiled == null) {
+                compiled = new CompiledPart(part, this, transform);
+                parts[transform.ordinal()] = compiled;
             }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            return compiled;
         }
+        Triple<CompiledPalette, IBuildingPart, Transform> key = Triple.of(this, part, transform);
+        CompiledPart compiled = sharedCompiledParts.get(key);
+        if (compiled != null) {
+            partHits.increment();
+        } else {
+            partMisses.increment();
+            compiled = new CompiledPart(part, this, transform);
+            sharedCompiledParts.put(key, compiled);
+        }
+        return compiled;
     }
 
     public BlockState canBeDamagedToIronBars(BlockState b) {
         return damagedToBlock.get(b);
     }
 
-    public Info getInfo(Character c) { return information.get(c); }
+    public Info getInfo(char c) {
+        return c < information.length ? information[c] : null;
+    }
 }
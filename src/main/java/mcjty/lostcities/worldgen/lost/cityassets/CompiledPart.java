@@ -0,0 +1,177 @@
+package mcjty.lostcities.worldgen.lost.cityassets;
+
+import mcjty.lostcities.worldgen.GenerationContext;
+import mcjty.lostcities.worldgen.LostCityTerrainFeature;
+import mcjty.lostcities.worldgen.lost.Transform;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.block.PoweredRailBlock;
+import net.minecraft.block.RailBlock;
+import net.minecraft.state.EnumProperty;
+import net.minecraft.state.properties.RailShape;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A building part that is resolved against a compiled palette and a transform. Every column
+ * knows its rotated position and the (already rotated) block for every height so that generating
+ * the part doesn't need any palette lookups. Random palette entries are kept as an array of
+ * 128 rotated variants. Instances are immutable and are shared between worldgen threads
+ */
+public class CompiledPart {
+
+    // Place the block without further checks
+    public static final byte PLAIN = 0;
+    // Air in the part. The world is not touched here
+    public static final byte SKIP = 1;
+    // The block needs the full checks (liquid, torches, loot, spawners, lighting, saplings, ...)
+    public static final byte SPECIAL = 2;
+
+    private final Column[] columns;
+    private final int sliceCount;
+
+    public static class Column {
+        private final int x;
+        private final int z;
+        private final char[] characters;
+        private final BlockState[] states;          // null for a random palette entry
+        private final BlockState[][] randomStates;  // Only for random palette entries
+        private final byte[] flags;
+
+        private Column(int x, int z, char[] characters, BlockState[] states, BlockState[][] randomStates, byte[] flags) {
+            this.x = x;
+            this.z = z;
+            this.characters = characters;
+            this.states = states;
+            this.randomStates = randomStates;
+            this.flags = flags;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getZ() {
+            return z;
+        }
+
+        public int getHeight() {
+            return characters.length;
+        }
+
+        public char getCharacter(int y) {
+            return characters[y];
+        }
+
+        /**
+         * Get the block at this height. For a random palette entry one of the variants is picked with
+         * the random generator of the context. Can return null if the palette has no block here
+         */
+        public BlockState getState(int y, GenerationContext ctx) {
+            BlockState state = states[y];
+            if (state == null) {
+                return randomStates[y][ctx.fastrand128()];
+            }
+            return state;
+        }
+
+        public byte getFlags(int y) {
+            return flags[y];
+        }
+    }
+
+    public CompiledPart(IBuildingPart part, CompiledPalette palette, Transform transform) {
+        List<Column> list = new ArrayList<>();
+        for (int x = 0; x < part.getXSize(); x++) {
+            for (int z = 0; z < part.getZSize(); z++) {
+                char[] vs = part.getVSlice(x, z);
+                if (vs != null) {
+                    list.add(compileColumn(part, palette, transform, x, z, vs));
+                }
+            }
+        }
+        columns = list.toArray(new Column[0]);
+        sliceCount = part.getSliceCount();
+    }
+
+    private static Column compileColumn(IBuildingPart part, CompiledPalette palette, Transform transform, int x, int z, char[] vs) {
+        int len = vs.length;
+        BlockState[] states = new BlockState[len];
+        BlockState[][] randomStates = new BlockState[len][];
+        byte[] flags = new byte[len];
+        for (int y = 0; y < len; y++) {
+            char c = vs[y];
+            boolean hasInfo = palette.getInfo(c) != null;
+            BlockState[] variants = palette.getVariants(c);
+            if (variants != null) {
+                BlockState[] rotated = new BlockState[variants.length];
+                boolean allAir = true;
+                boolean plain = true;
+                for (int i = 0; i < variants.length; i++) {
+                    // A random entry with weights that don't add up to 128 has holes. Keep them so that
+                    // we fail at the same moment as the uncompiled palette does
+                    if (variants[i] != null) {
+                        rotated[i] = transformState(variants[i], transform);
+                        byte f = getFlags(rotated[i], hasInfo);
+                        allAir &= f == SKIP;
+                        plain &= f == PLAIN;
+                    } else {
+                        allAir = false;
+                        plain = false;
+                    }
+                }
+                randomStates[y] = rotated;
+                flags[y] = allAir ? SKIP : (plain ? PLAIN : SPECIAL);
+            } else {
+                BlockState b = palette.getStraight(c);
+                if (b == null) {
+                    throw new RuntimeException("Could not find entry '" + c + "' in the palette for part '" + part.getName() + "'!");
+                }
+                states[y] = transformState(b, transform);
+                flags[y] = getFlags(states[y], hasInfo);
+            }
+        }
+        return new Column(transform.rotateX(x, z), transform.rotateZ(x, z), vs, states, randomStates, flags);
+    }
+
+    private static byte getFlags(BlockState b, boolean hasInfo) {
+        if (b == LostCityTerrainFeature.air) {
+            return SKIP;
+        }
+        if (hasInfo || b == LostCityTerrainFeature.hardAir
+                || LostCityTerrainFeature.getStatesNeedingLightingUpdate().contains(b)
+                || LostCityTerrainFeature.getStatesNeedingTodo().contains(b)) {
+            return SPECIAL;
+        }
+        return PLAIN;
+    }
+
+    private static BlockState transformState(BlockState b, Transform transform) {
+        if (transform != Transform.ROTATE_NONE) {
+            if (LostCityTerrainFeature.getRotatableStates().contains(b)) {
+                return b.rotate(transform.getMcRotation());
+            } else if (LostCityTerrainFeature.getRailStates().contains(b)) {
+                EnumProperty<RailShape> shapeProperty;
+                if (b.getBlock() == Blocks.RAIL) {
+                    shapeProperty = RailBlock.SHAPE;
+                } else if (b.getBlock() == Blocks.POWERED_RAIL) {
+                    shapeProperty = PoweredRailBlock.SHAPE;
+                } else {
+                    throw new RuntimeException("Error with rail!");
+                }
+                RailShape shape = b.getValue(shapeProperty);
+                return b.setValue(shapeProperty, transform.transform(shape));
+            }
+        }
+        return b;
+    }
+
+    public Column[] getColumns() {
+        return columns;
+    }
+
+    public int getSliceCount() {
+        return sliceCount;
+    }
+}
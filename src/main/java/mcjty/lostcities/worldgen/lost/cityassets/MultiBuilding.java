@@ -5,6 +5,8 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import mcjty.lostcities.api.ILostCityMultiBuilding;
 
+import java.util.List;
+
 public class MultiBuilding implements ILostCityMultiBuilding {
 
     private String name;
@@ -80,4 +82,12 @@ public class MultiBuilding implements ILostCityMultiBuilding {
         object.add("buildings", buildingArray);
         return object;
     }
+
+    void validate(List<String> errors) {
+        for (String[] row : buildings) {
+            for (String building : row) {
+                AssetRegistries.checkReference(AssetRegistries.BUILDINGS, building, "building", "multibuilding", name, errors);
+            }
+        }
+    }
 }
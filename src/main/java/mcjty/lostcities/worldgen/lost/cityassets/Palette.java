@@ -22,6 +22,7 @@ public class Palette implements ILostCityAsset {
     private final Map<Character, String> mobIds = new HashMap<>(); // For spawners
     private final Map<Character, String> lootTables = new HashMap<>(); // For chests
     private final Set<Character> torches = new HashSet<>(); // For torches
+    private final List<String> mergedNames = new ArrayList<>(); // Names of the palettes merged into this one
 
     public Palette() {
     }
@@ -40,6 +41,18 @@ public class Palette implements ILostCityAsset {
         mobIds.putAll(other.mobIds);
         lootTables.putAll(other.lootTables);
         torches.addAll(other.torches);
+        mergedNames.add(other.name);
+    }
+
+    /**
+     * For a palette that is only made by merging named palettes this returns a key that is the
+     * same for every palette made from the same palettes in the same order. Otherwise null
+     */
+    public String getMergeKey() {
+        if (mergedNames.isEmpty() || name != null || mergedNames.contains(null)) {
+            return null;
+        }
+        return String.join("+", mergedNames);
     }
 
     @Override
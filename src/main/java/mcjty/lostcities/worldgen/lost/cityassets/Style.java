@@ -91,5 +91,11 @@ public class Style implements ILostCityAsset {
         return palette;
     }
 
-
+    void validate(List<String> errors) {
+        for (List<Pair<Float, String>> pairs : randomPaletteChoices) {
+            for (Pair<Float, String> pair : pairs) {
+                AssetRegistries.checkReference(AssetRegistries.PALETTES, pair.getRight(), "palette", "style", name, errors);
+            }
+        }
+    }
 }
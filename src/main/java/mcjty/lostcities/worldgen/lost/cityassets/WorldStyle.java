@@ -5,7 +5,6 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import mcjty.lostcities.api.ILostCityAsset;
-import mcjty.lostcities.varia.ChunkCoord;
 import mcjty.lostcities.varia.Tools;
 import mcjty.lostcities.worldgen.IDimensionInfo;
 import mcjty.lostcities.worldgen.lost.BiomeInfo;
@@ -95,7 +94,7 @@ public class WorldStyle implements ILostCityAsset {
 
 
     public String getRandomCityStyle(IDimensionInfo provider, int chunkX, int chunkZ, Random random) {
-        Biome biomes = BiomeInfo.getBiomeInfo(provider, new ChunkCoord(provider.getType(), chunkX, chunkZ)).getMainBiome();
+        Biome biomes = BiomeInfo.getBiomeInfo(provider, chunkX, chunkZ).getMainBiome();
         Info info = new Info(biomes, chunkX, chunkZ);
         List<Pair<Float, String>> ct = new ArrayList<>();
         for (Pair<Predicate<Info>, Pair<Float, String>> pair : cityStyleSelector) {
@@ -107,6 +106,13 @@ public class WorldStyle implements ILostCityAsset {
         return Tools.getRandomFromList(random, ct);
     }
 
+    void validate(List<String> errors) {
+        AssetRegistries.checkReference(AssetRegistries.STYLES, outsideStyle, "style", "worldstyle", name, errors);
+        for (Pair<Predicate<Info>, Pair<Float, String>> pair : cityStyleSelector) {
+            AssetRegistries.checkReference(AssetRegistries.CITYSTYLES, pair.getValue().getValue(), "citystyle", "worldstyle", name, errors);
+        }
+    }
+
     private static class Info {
         private final Biome biome;
 